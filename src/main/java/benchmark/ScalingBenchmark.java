@@ -0,0 +1,243 @@
+package benchmark;
+
+import maze.CompiledMaze;
+import maze.DistanceGenerator;
+import maze.DistanceRowCache;
+import maze.DistanceTable;
+import maze.FirstMoveTable;
+import maze.JunctionGraph;
+import maze.MazeFile;
+import maze.SyntheticMazeGenerator;
+import prediction.PillModel;
+import prediction.fast.GhostPredictionsFast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * Times the building blocks of the controllers on synthetic mazes of growing size, to show which of
+ * them grow faster than the maze does.
+ * <p>
+ * The engine only plays its own four mazes, so the controllers themselves can't be run on a synthetic
+ * one. What is timed instead is what they spend their time in: the belief update, copy and sampling
+ * of {@link GhostPredictionsFast}, the pill model, a rollout's move generation, and the path finding
+ * structures. The all pairs tables are n squared in memory and are skipped above {@link #ALL_PAIRS_LIMIT} nodes.
+ * <p>
+ * Run with the scales as arguments, 1 4 16 64 by default, and -s seed. Scale 1 is the size of maze a.
+ * The last column is the growth exponent from the first scale to the last, 1 for linear.
+ */
+public final class ScalingBenchmark {
+    public static final int BASE_NODES = 1293;
+    public static final int ALL_PAIRS_LIMIT = 8192;
+    private static final int[] DEFAULT_SCALES = {1, 4, 16, 64};
+    private static final GHOST[] GHOSTS = GHOST.values();
+    private static final int UPDATES = 50;
+    private static final int SAMPLES = 64;
+    private static final int ROLLOUT_DEPTH = 300;
+    // Exponents over this are called out as super linear
+    private static final double SUPER_LINEAR = 1.15;
+    // Each timing runs for at least this long, after as long again untimed
+    private static final long MINIMUM_NANOS = 50_000_000L;
+
+    private final Map<String, double[]> results = new LinkedHashMap<>();
+    private final int[] scales;
+    private final int[] nodes;
+    private final long seed;
+
+    private ScalingBenchmark(int[] scales, long seed) {
+        this.scales = scales;
+        this.nodes = new int[scales.length];
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) {
+        long seed = 0;
+        List<Integer> scales = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-s") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                scales.add(Integer.parseInt(args[i]));
+            }
+        }
+        int[] chosen = scales.isEmpty() ? DEFAULT_SCALES : scales.stream().mapToInt(Integer::intValue).toArray();
+        // Once through untimed at the smallest size so the first scale isn't paying for the JIT
+        System.out.println("Warming up");
+        new ScalingBenchmark(new int[]{1}, seed).run(0);
+        ScalingBenchmark benchmark = new ScalingBenchmark(chosen, seed);
+        for (int i = 0; i < chosen.length; i++) {
+            benchmark.run(i);
+        }
+        benchmark.print();
+    }
+
+    private void run(int column) {
+        int scale = scales[column];
+        // Fewer repeats as things get bigger, but never so few a timing is one call
+        int repeats = Math.max(5, 200 / scale);
+        Random random = new Random(seed);
+
+        long start = System.nanoTime();
+        MazeFile file = new SyntheticMazeGenerator(BASE_NODES * scale, seed).generate();
+        record("generate ms", column, (System.nanoTime() - start) / 1e6);
+        nodes[column] = file.getNumberOfNodes();
+        System.out.println("Scale " + scale + ": " + nodes[column] + " nodes, " + file.getJunctionNodes().length + " junctions");
+
+        start = System.nanoTime();
+        CompiledMaze maze = CompiledMaze.build(file);
+        record("compile maze ms", column, (System.nanoTime() - start) / 1e6);
+
+        // Beliefs, both modes, from sightings that spread out
+        for (boolean sparse : new boolean[]{false, true}) {
+            String mode = sparse ? "sparse " : "dense ";
+            start = System.nanoTime();
+            GhostPredictionsFast settled = new GhostPredictionsFast(maze, sparse);
+            record(mode + "belief build ms", column, (System.nanoTime() - start) / 1e6);
+            // A ghost has to have been seen for update to propagate it, the uniform start is only cleared
+            for (GHOST ghost : GHOSTS) {
+                settled.observe(ghost, random.nextInt(maze.getNumberOfNodes() - 1), MOVE.NEUTRAL);
+            }
+            for (int update = 0; update < UPDATES; update++) {
+                settled.update();
+            }
+            // The same spread out belief moved on a step every call
+            GhostPredictionsFast work = settled.copy();
+            record(mode + "spread update us", column, micros(() -> {
+                settled.copyInto(work);
+                work.update();
+            }, repeats));
+
+            GhostPredictionsFast spread = new GhostPredictionsFast(maze, sparse);
+            double[] updateNanos = new double[1];
+            for (int repeat = 0; repeat < repeats; repeat++) {
+                for (GHOST ghost : GHOSTS) {
+                    spread.observe(ghost, random.nextInt(maze.getNumberOfNodes() - 1), MOVE.NEUTRAL);
+                }
+                long updateStart = System.nanoTime();
+                for (int update = 0; update < UPDATES; update++) {
+                    spread.update();
+                }
+                updateNanos[0] += System.nanoTime() - updateStart;
+            }
+            record(mode + "sighted update us", column, updateNanos[0] / (repeats * UPDATES) / 1e3);
+            GhostPredictionsFast copy = spread.copy();
+            record(mode + "copy us", column, micros(() -> spread.copyInto(copy), repeats));
+            int[] indices = new int[SAMPLES * GHOSTS.length];
+            int[] moves = new int[SAMPLES * GHOSTS.length];
+            record(mode + SAMPLES + " samples us", column, micros(() -> spread.sampleLocations(SAMPLES, indices, moves), repeats));
+        }
+
+        // What every IS-MCTS iteration does besides the beliefs
+        start = System.nanoTime();
+        PillModel pills = new PillModel(maze);
+        record("pill model build ms", column, (System.nanoTime() - start) / 1e6);
+        record("pill model copy us", column, micros(pills::copy, repeats));
+        int numberOfPills = pills.getNumberOfPills();
+        // Each call eats ten pills of a fresh copy, so every timed call does the incremental update
+        record("pill eaten us", column, micros(() -> {
+            PillModel model = pills.copy();
+            for (int k = 0; k < 10; k++) {
+                model.update(random.nextInt(numberOfPills));
+            }
+        }, repeats));
+        record("rollout step ns", column, micros(() -> rollout(maze, random), repeats) * 1e3 / ROLLOUT_DEPTH);
+
+        // Path finding
+        DistanceRowCache rows = new DistanceRowCache(maze, 1);
+        record("BFS row us", column, micros(() -> rows.getShortestPathDistance(
+                random.nextInt(maze.getNumberOfNodes()), random.nextInt(maze.getNumberOfNodes())), repeats));
+        start = System.nanoTime();
+        JunctionGraph junctions = JunctionGraph.build(file);
+        record("junction graph build ms", column, (System.nanoTime() - start) / 1e6);
+        boolean[] isTarget = new boolean[maze.getNumberOfNodes()];
+        for (int node : maze.getPowerPillNodes()) {
+            isTarget[node] = true;
+        }
+        record("nearest power pill us", column, micros(() -> junctions.getNearestTarget(
+                random.nextInt(maze.getNumberOfNodes() - 1), isTarget), repeats));
+
+        if (nodes[column] <= ALL_PAIRS_LIMIT) {
+            start = System.nanoTime();
+            short[] distances = DistanceGenerator.generate(file);
+            record("all pairs distances ms", column, (System.nanoTime() - start) / 1e6);
+            start = System.nanoTime();
+            FirstMoveTable.build(file, (from, to) -> distances[DistanceTable.index(from, to)]);
+            record("first move table ms", column, (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    private static void rollout(CompiledMaze maze, Random random) {
+        int node = maze.getInitialPacManNodeIndex();
+        MOVE lastMove = MOVE.NEUTRAL;
+        for (int step = 0; step < ROLLOUT_DEPTH; step++) {
+            MOVE[] moves = maze.getPossibleMoves(node, lastMove);
+            lastMove = moves[random.nextInt(moves.length)];
+            node = maze.getNeighbour(node, lastMove);
+        }
+    }
+
+    // The mean over at least the repeats and MINIMUM_NANOS, after warming up for as long
+    private static double micros(Runnable task, int repeats) {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < MINIMUM_NANOS) {
+            task.run();
+        }
+        start = System.nanoTime();
+        long calls = 0;
+        long elapsed;
+        do {
+            task.run();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (calls < repeats || elapsed < MINIMUM_NANOS);
+        return elapsed / 1e3 / calls;
+    }
+
+    private void record(String name, int column, double value) {
+        double[] values = results.get(name);
+        if (values == null) {
+            values = new double[scales.length];
+            Arrays.fill(values, Double.NaN);
+            results.put(name, values);
+        }
+        values[column] = value;
+    }
+
+    private void print() {
+        StringBuilder header = new StringBuilder(String.format("%-26s", "nodes"));
+        for (int n : nodes) {
+            header.append(String.format("%12d", n));
+        }
+        System.out.println(header.append(String.format("%10s", "exponent")));
+        for (Map.Entry<String, double[]> entry : results.entrySet()) {
+            double[] values = entry.getValue();
+            StringBuilder line = new StringBuilder(String.format("%-26s", entry.getKey()));
+            int first = -1;
+            int last = -1;
+            for (int i = 0; i < values.length; i++) {
+                if (Double.isNaN(values[i])) {
+                    line.append(String.format("%12s", "-"));
+                } else {
+                    line.append(String.format("%12.2f", values[i]));
+                    if (first == -1) first = i;
+                    last = i;
+                }
+            }
+            if (last > first && values[first] > 0) {
+                double exponent = Math.log(values[last] / values[first]) / Math.log((double) nodes[last] / nodes[first]);
+                line.append(String.format("%10.2f", exponent));
+                if (exponent > SUPER_LINEAR) {
+                    line.append(" super linear");
+                }
+            }
+            System.out.println(line);
+        }
+    }
+}
@@ -8,15 +8,26 @@ import pacman.game.info.GameInfo;
 import pacman.game.internal.Ghost;
 import pacman.game.internal.Maze;
 import pacman.game.internal.PacMan;
-import prediction.GhostLocation;
+import maze.CompiledMaze;
+import maze.FirstMoveTable;
+import maze.MazeSnapshot;
 import prediction.PillModel;
+import prediction.fast.BeliefMetrics;
 import prediction.fast.GhostPredictionsFast;
+import prediction.fast.LearnedTransitions;
 
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.EnumMap;
-import java.util.Random;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static pacman.game.Constants.*;
 
@@ -24,15 +35,35 @@ import static pacman.game.Constants.*;
  * Created by piers on 30/09/16.
  */
 public class InformationSetMCTSPacMan extends PacmanController implements Drawable {
+    private static final MOVE[] MOVES = MOVE.values();
+    // Determinisations are drawn from the beliefs this many at a time
+    private static final int SAMPLE_BATCH = 64;
     protected final int maxTreeDepth;
     protected final int maxRolloutDepth;
     protected Random random = new Random();
     private GhostPredictionsFast predictions;
     private PillModel pillModel;
     private Maze currentMaze;
+    // The current maze as flat arrays, for move generation in the tree and rollouts
+    CompiledMaze compiledMaze;
     private Game mostRecentGame;
     private Color[] redAlphas;
     private int[] ghostEdibleTime;
+    // Root parallel search, a tree per thread merged at the deadline. The first worker runs on the calling thread
+    private int threads = 1;
+    private Worker[] workers;
+    private ExecutorService pool;
+    private BitSet visibleNodes = new BitSet();
+    // Rollout ghost moves are read from here when it could be loaded, otherwise asked of the game
+    FirstMoveTable firstMoves;
+    private BeliefMetrics beliefMetrics;
+    // Consecutive sightings are recorded as learned transitions, used for the beliefs when enabled
+    private boolean useLearnedTransitions;
+    private LearnedTransitions learnedTransitions;
+    private int[] lastSeenIndex = new int[GHOST.values().length];
+    private MOVE[] lastSeenMove = new MOVE[GHOST.values().length];
+    private int lastSeenTime = -1;
+    private int lastPacManIndex = -1;
     public InformationSetMCTSPacMan() {
         maxTreeDepth = 50;
         maxRolloutDepth = 300;
@@ -43,12 +74,15 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
         }
 
         ghostEdibleTime = new int[GHOST.values().length];
+        // The derived maze data loads in the background while the game starts up
+        MazeSnapshot.preloadAll();
     }
 
     @ObjectDef("IS-MCTS")
     public InformationSetMCTSPacMan(int maxTreeDepth, int maxRolloutDepth) {
         this.maxTreeDepth = maxTreeDepth;
         this.maxRolloutDepth = maxRolloutDepth;
+        MazeSnapshot.preloadAll();
     }
 
     @Override
@@ -59,25 +93,47 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
             pillModel = null;
             System.out.println("New Maze");
             Arrays.fill(ghostEdibleTime, -1);
+            Arrays.fill(lastSeenIndex, -1);
+            lastSeenTime = -1;
+            if (workers != null) {
+                for (Worker worker : workers) {
+                    worker.beliefs = null;
+                }
+            }
+            // The beliefs and the learned transitions index the same transitions, so share one compiled maze
+            compiledMaze = CompiledMaze.forMaze(currentMaze);
+            learnedTransitions = LearnedTransitions.forMaze(currentMaze);
+            firstMoves = null;
+        }
+        if (firstMoves == null) {
+            // Never waits for the snapshot, until it has loaded the rollouts ask the game
+            MazeSnapshot snapshot = MazeSnapshot.getIfLoaded(currentMaze.name);
+            if (snapshot != null) {
+                firstMoves = snapshot.getFirstMoves();
+            }
         }
         mostRecentGame = game;
-        if (game.gameOver()) return null;
+        if (game.gameOver()) {
+            if (beliefMetrics != null) {
+                beliefMetrics.dump(System.out);
+                beliefMetrics.reset();
+            }
+            return null;
+        }
 
         if (game.wasPacManEaten()) {
             predictions = null;
         }
 
         if (predictions == null) {
-            predictions = new GhostPredictionsFast(game.getCurrentMaze());
+            predictions = new GhostPredictionsFast(compiledMaze, true);
+            predictions.setMetrics(beliefMetrics);
+            predictions.setLearnedTransitions(useLearnedTransitions ? learnedTransitions : null);
             predictions.preallocate();
         }
         if (pillModel == null) {
-            pillModel = new PillModel(game.getNumberOfPills());
-
-            int[] indices = game.getCurrentMaze().pillIndices;
-            for (int index : indices) {
-                pillModel.observe(index, true);
-            }
+            // Starts with every pill there, by pill index rather than node index
+            pillModel = new PillModel(game.getCurrentMaze());
         }
 
         // Update the pill model with what isn't available anymore
@@ -89,7 +145,10 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
             }
         }
 
+        recordGhostMoves(game);
+
         // Get observations of ghosts and pass them in to the predictor
+        boolean visibleNodesFound = false;
         for (GHOST ghost : GHOST.values()) {
             if (ghostEdibleTime[ghost.ordinal()] != -1) {
                 ghostEdibleTime[ghost.ordinal()]--;
@@ -100,42 +159,192 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
                 predictions.observe(ghost, ghostIndex, game.getGhostLastMoveMade(ghost));
                 ghostEdibleTime[ghost.ordinal()] = game.getGhostEdibleTime(ghost);
             } else {
-                List<GhostLocation> locations = predictions.getGhostLocations(ghost);
-                locations.stream().filter(location -> game.isNodeObservable(location.getIndex())).forEach(location -> {
-                    predictions.observeNotPresent(ghost, location.getIndex());
-                });
+                if (!visibleNodesFound) {
+                    GhostPredictionsFast.getVisibleNodes(game, visibleNodes);
+                    visibleNodesFound = true;
+                }
+                predictions.observeNotPresent(ghost, visibleNodes);
             }
         }
-        ISNode root = new ISNode(this, game);
-        while (System.currentTimeMillis() < timeDue) {
-            // Determinise and form a game state!
-            Game copy = obtainDeterminisedState(game);
-            ISNode travel = root.select(copy);
-            double score = travel.rollout(copy);
-            travel.updateValues(score);
-        }
+        ISNode root = search(game, timeDue);
+        predictions.setPacManLocation(game.getPacmanCurrentNodeIndex());
         predictions.update();
         return root.selectBestMove();
     }
 
-    private Game obtainDeterminisedState(Game game) {
-        GameInfo info = game.getPopulatedGameInfo();
-        info.setPacman(new PacMan(game.getPacmanCurrentNodeIndex(), game.getPacmanLastMoveMade(), 0, false));
-        EnumMap<GHOST, GhostLocation> locations = predictions.sampleLocations();
-        info.fixGhosts(ghost -> {
-            GhostLocation location = locations.get(ghost);
-            if (location != null) {
-                int edibleTime = ghostEdibleTime[ghost.ordinal()];
-                return new Ghost(ghost, location.getIndex(), edibleTime, 0, location.getLastMoveMade());
+    private ISNode search(Game game, long timeDue) {
+        if (workers == null || workers.length != threads) {
+            workers = new Worker[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Worker();
+            }
+        }
+        // The first worker searches just as a single threaded search would, on the game and beliefs themselves
+        Worker first = workers[0];
+        first.random = random;
+        first.beliefs = predictions;
+        first.game = game;
+        first.timeDue = timeDue;
+        if (threads == 1) {
+            return first.call();
+        }
+
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads - 1, runnable -> {
+                Thread thread = new Thread(runnable, "IS-MCTS worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        List<Future<ISNode>> futures = new ArrayList<>(threads - 1);
+        // The metrics measure the game's beliefs, the workers' copies of them are not reported
+        BeliefMetrics metrics = predictions.getMetrics();
+        predictions.setMetrics(null);
+        for (int i = 1; i < threads; i++) {
+            Worker worker = workers[i];
+            if (worker.random == null) {
+                worker.random = new Random(random.nextLong());
+            }
+            // The others play out their own copy of the game and sample from their own copy of the beliefs
+            if (worker.beliefs == null) {
+                worker.beliefs = predictions.copy();
             } else {
-                return new Ghost(ghost, game.getGhostInitialNodeIndex(), 0, 0, MOVE.NEUTRAL);
+                predictions.copyInto(worker.beliefs);
             }
-        });
+            worker.game = game.copy();
+            worker.timeDue = timeDue;
+            futures.add(pool.submit(worker));
+        }
+        predictions.setMetrics(metrics);
+        ISNode root = first.call();
+        for (Future<ISNode> future : futures) {
+            try {
+                root.mergeRoot(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("An IS-MCTS worker failed", e.getCause());
+            }
+        }
+        return root;
+    }
 
-        for (int i = 0; i < pillModel.getPills().length(); i++) {
-            info.setPillAtIndex(i, pillModel.getPills().get(i));
+    /**
+     * Search with a tree per thread from the root, each with its own determinisations, and add up their
+     * visits and scores for the moves out of the root when the time is up
+     *
+     * @param threads How many threads to search on, 1 to search on the calling thread alone
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1, was " + threads);
+        }
+        if (threads != this.threads && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // A ghost seen on two ticks running a step apart shows which way it chose to go
+    private void recordGhostMoves(Game game) {
+        boolean consecutive = game.getTotalTime() == lastSeenTime + 1;
+        for (GHOST ghost : GHOST.values()) {
+            int ghostIndex = game.getGhostCurrentNodeIndex(ghost);
+            MOVE lastMove = game.getGhostLastMoveMade(ghost);
+            int previous = lastSeenIndex[ghost.ordinal()];
+            if (consecutive && ghostIndex != -1 && previous != -1 && ghostIndex != previous
+                    && game.getNeighbour(previous, lastMove) == ghostIndex) {
+                learnedTransitions.record(previous, lastSeenMove[ghost.ordinal()], lastMove, lastPacManIndex);
+            }
+            lastSeenIndex[ghost.ordinal()] = ghostIndex;
+            lastSeenMove[ghost.ordinal()] = lastMove;
+        }
+        lastSeenTime = game.getTotalTime();
+        lastPacManIndex = game.getPacmanCurrentNodeIndex();
+    }
+
+    /**
+     * Propagate the ghost beliefs with the moves ghosts have been seen to make rather than an even split.
+     * Sightings are recorded either way
+     *
+     * @param useLearnedTransitions Whether to use them
+     */
+    public void setUseLearnedTransitions(boolean useLearnedTransitions) {
+        this.useLearnedTransitions = useLearnedTransitions;
+        if (predictions != null) {
+            predictions.setLearnedTransitions(useLearnedTransitions ? learnedTransitions : null);
+        }
+    }
+
+    /**
+     * Measure the ghost beliefs, the metrics are printed and reset when a game ends
+     *
+     * @param beliefMetrics Where to record, null to stop
+     */
+    public void setBeliefMetrics(BeliefMetrics beliefMetrics) {
+        this.beliefMetrics = beliefMetrics;
+        if (predictions != null) {
+            predictions.setMetrics(beliefMetrics);
+        }
+    }
+
+    /**
+     * The state of one search: its random numbers, the beliefs it samples from and its sampling buffers.
+     * With more than one thread each has its own, and they share only what the search reads
+     */
+    private final class Worker implements Callable<ISNode> {
+        private Random random;
+        private GhostPredictionsFast beliefs;
+        private Game game;
+        private long timeDue;
+        private final int[] sampledIndices = new int[SAMPLE_BATCH * GHOST.values().length];
+        private final int[] sampledMoves = new int[SAMPLE_BATCH * GHOST.values().length];
+        private int nextSample;
+
+        @Override
+        public ISNode call() {
+            ISNode root = new ISNode(InformationSetMCTSPacMan.this, game, random);
+            nextSample = SAMPLE_BATCH;
+            while (System.currentTimeMillis() < timeDue) {
+                // Determinise and form a game state!
+                Game copy = obtainDeterminisedState(game);
+                ISNode travel = root.select(copy);
+                double score = travel.rollout(copy);
+                travel.updateValues(score);
+            }
+            return root;
+        }
+
+        private Game obtainDeterminisedState(Game game) {
+            GameInfo info = game.getPopulatedGameInfo();
+            info.setPacman(new PacMan(game.getPacmanCurrentNodeIndex(), game.getPacmanLastMoveMade(), 0, false));
+            if (nextSample == SAMPLE_BATCH) {
+                beliefs.sampleLocations(SAMPLE_BATCH, sampledIndices, sampledMoves);
+                nextSample = 0;
+            }
+            int offset = nextSample++ * GHOST.values().length;
+            info.fixGhosts(ghost -> {
+                int index = sampledIndices[offset + ghost.ordinal()];
+                if (index != -1) {
+                    int edibleTime = ghostEdibleTime[ghost.ordinal()];
+                    return new Ghost(ghost, index, edibleTime, 0, MOVES[sampledMoves[offset + ghost.ordinal()]]);
+                } else {
+                    return new Ghost(ghost, game.getGhostInitialNodeIndex(), 0, 0, MOVE.NEUTRAL);
+                }
+            });
+
+            int remaining = pillModel.getRemainingCount();
+            for (int k = 0; k < pillModel.getNumberOfPills(); k++) {
+                info.setPillAtIndex(pillModel.getPill(k), k < remaining);
+            }
+            return game.getGameFromInfo(info);
         }
-        return game.getGameFromInfo(info);
     }
 
     @Override
@@ -147,8 +356,9 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
     public void draw(Graphics2D graphics) {
 //        System.out.println("Drawing!");
         // Draw it
-        for (int i = 0; i < mostRecentGame.getNumberOfNodes(); i++) {
-            double probability = predictions.calculate(i);
+        double[] dangerMap = predictions.getDangerMap();
+        for (int i = 0; i < dangerMap.length; i++) {
+            double probability = dangerMap[i];
             if (probability > 1E-4) {
                 graphics.setColor(redAlphas[(int) Math.min(255 * probability, 255)]);
                 graphics.fillRect(
@@ -164,6 +374,8 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
 class ISNode {
 
     private final InformationSetMCTSPacMan informationSetMCTSPacMan;
+    // Shared by the whole tree, each tree has its own so trees can be searched on different threads
+    private final Random random;
     private ISNode parent;
     private MOVE moveToThisState;
     private ISNode[] children;
@@ -175,7 +387,12 @@ class ISNode {
     private int treeDepth;
 
     public ISNode(InformationSetMCTSPacMan informationSetMCTSPacMan, Game game) {
+        this(informationSetMCTSPacMan, game, informationSetMCTSPacMan.random);
+    }
+
+    public ISNode(InformationSetMCTSPacMan informationSetMCTSPacMan, Game game, Random random) {
         this.informationSetMCTSPacMan = informationSetMCTSPacMan;
+        this.random = random;
         treeDepth = 0;
         this.legalMoves = getLegalMovesNotIncludingBackwards(game);
         this.children = new ISNode[legalMoves.length];
@@ -183,6 +400,7 @@ class ISNode {
 
     public ISNode(ISNode parent, MOVE moveToThisState, MOVE[] legalMoves) {
         this.informationSetMCTSPacMan = parent.informationSetMCTSPacMan;
+        this.random = parent.random;
         this.parent = parent;
         this.treeDepth = parent.treeDepth + 1;
         this.moveToThisState = moveToThisState;
@@ -212,7 +430,6 @@ class ISNode {
 
     public double rollout(Game game) {
         int rolloutDepth = treeDepth;
-        Random random = informationSetMCTSPacMan.random;
         while (rolloutDepth < informationSetMCTSPacMan.maxRolloutDepth) {
             if (game.gameOver()) break;
             MOVE[] legalMoves = getLegalMovesNotIncludingBackwards(game);
@@ -244,7 +461,7 @@ class ISNode {
         double bestScore = -Double.MAX_VALUE;
         for (int i = 0; i < children.length; i++) {
             if (children[i] == null) {
-                double score = informationSetMCTSPacMan.random.nextDouble();
+                double score = random.nextDouble();
                 if (score > bestScore) {
                     index = i;
                     bestScore = score;
@@ -287,6 +504,30 @@ class ISNode {
         return bestChild == null ? MOVE.NEUTRAL : bestChild.moveToThisState;
     }
 
+    /**
+     * Add another root's statistics for the moves out of the root into this one's, for root parallel search.
+     * Both must have been searched from the same state
+     *
+     * @param other The root of a tree searched on another thread
+     */
+    public void mergeRoot(ISNode other) {
+        if (!Arrays.equals(legalMoves, other.legalMoves)) {
+            throw new IllegalArgumentException("Can't merge roots with moves " + Arrays.toString(legalMoves)
+                    + " and " + Arrays.toString(other.legalMoves));
+        }
+        visits += other.visits;
+        for (int i = 0; i < children.length; i++) {
+            ISNode theirs = other.children[i];
+            if (theirs == null) continue;
+            if (children[i] == null) {
+                children[i] = new ISNode(this, legalMoves[i], theirs.legalMoves);
+                childrenExpandedSoFar++;
+            }
+            children[i].visits += theirs.visits;
+            children[i].score += theirs.score;
+        }
+    }
+
     public boolean isRoot() {
         return parent == null;
     }
@@ -303,10 +544,20 @@ class ISNode {
     protected EnumMap<GHOST, MOVE> getBasicGhostMoves(Game game) {
         EnumMap<GHOST, MOVE> moves = new EnumMap<>(GHOST.class);
         int pacmanLocation = game.getPacmanCurrentNodeIndex();
+        CompiledMaze maze = getCompiledMaze(game);
+        FirstMoveTable firstMoves = getFirstMoves(maze);
         for (GHOST ghost : GHOST.values()) {
             int index = game.getGhostCurrentNodeIndex(ghost);
             MOVE previousMove = game.getGhostLastMoveMade(ghost);
-            if (game.isJunction(index)) {
+            if (maze.isJunction(index) && firstMoves != null && pacmanLocation != -1) {
+                // The same moves as the game gives below, looked up
+                MOVE move = (game.isGhostEdible(ghost))
+                        ? firstMoves.getApproximateNextMoveAwayFromTarget(index, pacmanLocation, previousMove)
+                        : firstMoves.getNextMoveTowardsTarget(index, pacmanLocation, previousMove);
+                if (move != null) {
+                    moves.put(ghost, move);
+                }
+            } else if (maze.isJunction(index)) {
                 try {
                     MOVE move = (game.isGhostEdible(ghost))
                             ? game.getApproximateNextMoveAwayFromTarget(index, pacmanLocation, previousMove, DM.PATH)
@@ -324,22 +575,16 @@ class ISNode {
 
     protected EnumMap<GHOST, MOVE> getRandomGhostMoves(Game game) {
         EnumMap<GHOST, MOVE> moves = new EnumMap<>(GHOST.class);
-        Random random = informationSetMCTSPacMan.random;
+        CompiledMaze maze = getCompiledMaze(game);
         for (GHOST ghost : GHOST.values()) {
             int index = game.getGhostCurrentNodeIndex(ghost);
             MOVE previousMove = game.getGhostLastMoveMade(ghost);
             if (previousMove == null) {
                 System.out.println("Problem");
             }
-            // Get allowed moves from there
-            MOVE[] possibleMoves;
-            if (previousMove != MOVE.NEUTRAL) {
-                possibleMoves = game.getCurrentMaze().graph[index].allPossibleMoves.get(previousMove);
-            } else {
-                possibleMoves = new MOVE[game.getCurrentMaze().graph[index].neighbourhood.keySet().size()];
-                possibleMoves = game.getCurrentMaze().graph[index].neighbourhood.keySet().toArray(possibleMoves);
-            }
-            if (possibleMoves == null || possibleMoves.length == 0) {
+            // Get allowed moves from there, every move when NEUTRAL
+            MOVE[] possibleMoves = maze.getPossibleMoves(index, previousMove);
+            if (possibleMoves.length == 0) {
                 moves.put(ghost, MOVE.NEUTRAL);
             } else {
                 moves.put(ghost, possibleMoves[random.nextInt(possibleMoves.length)]);
@@ -348,14 +593,32 @@ class ISNode {
         return moves;
     }
 
+    // The returned moves are shared by the compiled maze, don't modify them
     protected MOVE[] getLegalMovesNotIncludingBackwards(Game game) {
-        return game.getCurrentMaze().graph[game.getPacmanCurrentNodeIndex()].allPossibleMoves.get(game.getPacmanLastMoveMade());
+        return getCompiledMaze(game).getPossibleMoves(game.getPacmanCurrentNodeIndex(), game.getPacmanLastMoveMade());
     }
 
     protected MOVE[] getAllLegalMoves(Game game) {
-        Maze maze = game.getCurrentMaze();
-        int index = game.getPacmanCurrentNodeIndex();
-        return maze.graph[index].neighbourhood.keySet().toArray(new MOVE[maze.graph[index].neighbourhood.keySet().size()]);
+        return getCompiledMaze(game).getPossibleMoves(game.getPacmanCurrentNodeIndex());
+    }
+
+    // A rollout can carry on into the next maze, only the controller's current one is held on to
+    private CompiledMaze getCompiledMaze(Game game) {
+        CompiledMaze maze = informationSetMCTSPacMan.compiledMaze;
+        if (maze == null || !maze.getName().equals(game.getCurrentMaze().name)) {
+            maze = CompiledMaze.forMaze(game.getCurrentMaze());
+        }
+        return maze;
+    }
+
+    // The table is for the maze at the root, a rollout that has gone on to the next level asks the game
+    private FirstMoveTable getFirstMoves(CompiledMaze maze) {
+        FirstMoveTable firstMoves = informationSetMCTSPacMan.firstMoves;
+        if (firstMoves == null || maze != informationSetMCTSPacMan.compiledMaze
+                || firstMoves.getNumberOfNodes() != maze.getNumberOfNodes()) {
+            return null;
+        }
+        return firstMoves;
     }
 
     public void printChildren() {
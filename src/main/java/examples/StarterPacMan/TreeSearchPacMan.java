@@ -1,5 +1,6 @@
 package examples.StarterPacMan;
 
+import maze.CompiledMaze;
 import pacman.Executor;
 import pacman.controllers.PacmanController;
 import pacman.game.Constants;
@@ -243,7 +244,9 @@ public class TreeSearchPacMan extends PacmanController {
     
     public List<Path> getPaths(int maxPathLength)
     {
-    	MOVE[] startingPossibleMoves = game.getPossibleMoves(pacmanCurrentNodeIndex);
+    	// Walked on the compiled maze, its move arrays are shared and not to be modified
+    	CompiledMaze maze = CompiledMaze.forMaze(game.getCurrentMaze());
+    	MOVE[] startingPossibleMoves = maze.getPossibleMoves(pacmanCurrentNodeIndex);
     	List<Path> paths = new ArrayList<>();
     	int minGhostDistance = minGhostDistanceBase /*+ getRandomInt(10, 30)*/;
 
@@ -253,7 +256,7 @@ public class TreeSearchPacMan extends PacmanController {
     		List<Segment> pendingSegments = new ArrayList<Segment>();
     		
 			// Step into next node
-    		int currentNode = game.getNeighbour(pacmanCurrentNodeIndex, startingPossibleMove);
+    		int currentNode = maze.getNeighbour(pacmanCurrentNodeIndex, startingPossibleMove);
 
     		// Create new segment starting from the node next to pacman
     		Segment currentSegment = new Segment();
@@ -272,8 +275,8 @@ public class TreeSearchPacMan extends PacmanController {
     		do
     		{    			
         		// Check pills and power pills
-				int pillIndex = game.getPillIndex(currentNode);	
-        		int powerPillIndex = game.getPowerPillIndex(currentNode);
+				int pillIndex = maze.getPillIndex(currentNode);	
+        		int powerPillIndex = maze.getPowerPillIndex(currentNode);
         		
         		try 
         		{
@@ -341,7 +344,7 @@ public class TreeSearchPacMan extends PacmanController {
         				break;				
         		}
     			     
-    			MOVE[] possibleMoves = game.getPossibleMoves(currentNode, currentSegment.direction);
+    			MOVE[] possibleMoves = maze.getPossibleMoves(currentNode, currentSegment.direction);
 
         		// If neighbor is a junction or a corner, end the current segment and create a new segment
         		if (possibleMoves.length > 1 || (possibleMoves.length == 1 && possibleMoves[0] != currentSegment.direction))
@@ -352,7 +355,7 @@ public class TreeSearchPacMan extends PacmanController {
         			for (int i = 0; i < possibleMoves.length; i++)
         			{
         				MOVE possibleMove = possibleMoves[i];  				
-        				int neighborNode = game.getNeighbour(currentNode, possibleMove);
+        				int neighborNode = maze.getNeighbour(currentNode, possibleMove);
         				
         				// Create new segment for each neighbor node
         				Segment segment = new Segment();
@@ -372,7 +375,7 @@ public class TreeSearchPacMan extends PacmanController {
         		}
         		        		
         		// Step into next node
-    			currentNode = game.getNeighbour(currentNode, currentSegment.direction);
+    			currentNode = maze.getNeighbour(currentNode, currentSegment.direction);
     			currentSegment.lengthSoFar++; 
 
     		}while(!pendingSegments.isEmpty() || currentSegment.lengthSoFar <= maxPathLength);
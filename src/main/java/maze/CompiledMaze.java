@@ -0,0 +1,264 @@
+package maze;
+
+import pacman.game.internal.Maze;
+import pacman.game.internal.Node;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static pacman.game.Constants.MOVE;
+
+/**
+ * A maze flattened into primitive arrays, built once and shared by everything that walks it.
+ * <p>
+ * Neighbours are indexed by node * NUM_DIRECTIONS + move ordinal, -1 where there is no way through.
+ * The moves allowed from each (node, last move) are kept as a four bit mask, so there are only sixteen
+ * distinct move arrays and every query hands back one of them. They are shared, never modify one.
+ * As with the engine NEUTRAL allows every move and any other last move all but its reverse.
+ * Where the engine has no entry, a last move that couldn't have arrived at the node, this still
+ * gives all but the reverse rather than null.
+ */
+public final class CompiledMaze {
+    public static final int NUM_DIRECTIONS = MazeFile.NUM_DIRECTIONS;
+
+    private static final MOVE[] MOVES = MOVE.values();
+    private static final int NUM_LAST_MOVES = MOVES.length;
+    // Every subset of the directions in MOVE order, indexed by its bit mask
+    private static final MOVE[][] MOVE_SETS = new MOVE[1 << NUM_DIRECTIONS][];
+
+    static {
+        for (int mask = 0; mask < MOVE_SETS.length; mask++) {
+            MOVE[] set = new MOVE[Integer.bitCount(mask)];
+            int k = 0;
+            for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+                if ((mask & (1 << direction)) != 0) {
+                    set[k++] = MOVES[direction];
+                }
+            }
+            MOVE_SETS[mask] = set;
+        }
+    }
+
+    private static final Map<Maze, CompiledMaze> cache = new WeakHashMap<>();
+
+    private final String name;
+    private final int initialPacManNodeIndex;
+    private final int lairNodeIndex;
+    private final int initialGhostNodeIndex;
+    private final int numberOfNodes;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] neighbours;
+    // Indexed by node * NUM_LAST_MOVES + last move
+    private final byte[] moveMasks;
+    private final boolean[] junctions;
+    private final int[] pillIndices;
+    private final int[] powerPillIndices;
+    private final int[] pillNodes;
+    private final int[] powerPillNodes;
+    private final int[] junctionNodes;
+
+    private CompiledMaze(String name, int initialPacManNodeIndex, int lairNodeIndex, int initialGhostNodeIndex,
+                         int[] xs, int[] ys, int[] neighbours, int[] pillIndices, int[] powerPillIndices,
+                         int[] pillNodes, int[] powerPillNodes) {
+        this.name = name;
+        this.initialPacManNodeIndex = initialPacManNodeIndex;
+        this.lairNodeIndex = lairNodeIndex;
+        this.initialGhostNodeIndex = initialGhostNodeIndex;
+        this.numberOfNodes = xs.length;
+        this.xs = xs;
+        this.ys = ys;
+        this.neighbours = neighbours;
+        this.pillIndices = pillIndices;
+        this.powerPillIndices = powerPillIndices;
+        this.pillNodes = pillNodes;
+        this.powerPillNodes = powerPillNodes;
+
+        moveMasks = new byte[numberOfNodes * NUM_LAST_MOVES];
+        junctions = new boolean[numberOfNodes];
+        int numberOfJunctions = 0;
+        for (int node = 0; node < numberOfNodes; node++) {
+            int all = 0;
+            for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+                if (neighbours[node * NUM_DIRECTIONS + direction] != -1) {
+                    all |= 1 << direction;
+                }
+            }
+            for (int lastMove = 0; lastMove < NUM_LAST_MOVES; lastMove++) {
+                MOVE reverse = MOVES[lastMove].opposite();
+                int mask = (reverse == MOVE.NEUTRAL) ? all : all & ~(1 << reverse.ordinal());
+                moveMasks[node * NUM_LAST_MOVES + lastMove] = (byte) mask;
+            }
+            if (Integer.bitCount(all) > 2) {
+                junctions[node] = true;
+                numberOfJunctions++;
+            }
+        }
+        junctionNodes = new int[numberOfJunctions];
+        int k = 0;
+        for (int node = 0; node < numberOfNodes; node++) {
+            if (junctions[node]) {
+                junctionNodes[k++] = node;
+            }
+        }
+    }
+
+    public static CompiledMaze build(Maze maze) {
+        int numberOfNodes = maze.graph.length;
+        int[] xs = new int[numberOfNodes];
+        int[] ys = new int[numberOfNodes];
+        int[] neighbours = new int[numberOfNodes * NUM_DIRECTIONS];
+        int[] pillIndices = new int[numberOfNodes];
+        int[] powerPillIndices = new int[numberOfNodes];
+        Arrays.fill(neighbours, -1);
+        for (int node = 0; node < numberOfNodes; node++) {
+            Node current = maze.graph[node];
+            xs[node] = current.x;
+            ys[node] = current.y;
+            pillIndices[node] = current.pillIndex;
+            powerPillIndices[node] = current.powerPillIndex;
+            for (Map.Entry<MOVE, Integer> entry : current.neighbourhood.entrySet()) {
+                neighbours[node * NUM_DIRECTIONS + entry.getKey().ordinal()] = entry.getValue();
+            }
+        }
+        return new CompiledMaze(maze.name, maze.initialPacManNodeIndex, maze.lairNodeIndex, maze.initialGhostNodeIndex,
+                xs, ys, neighbours, pillIndices, powerPillIndices,
+                maze.pillIndices.clone(), maze.powerPillIndices.clone());
+    }
+
+    public static CompiledMaze build(MazeFile maze) {
+        int numberOfNodes = maze.getNumberOfNodes();
+        int[] xs = new int[numberOfNodes];
+        int[] ys = new int[numberOfNodes];
+        int[] neighbours = new int[numberOfNodes * NUM_DIRECTIONS];
+        int[] pillIndices = new int[numberOfNodes];
+        int[] powerPillIndices = new int[numberOfNodes];
+        for (int node = 0; node < numberOfNodes; node++) {
+            xs[node] = maze.getX(node);
+            ys[node] = maze.getY(node);
+            pillIndices[node] = maze.getPillIndex(node);
+            powerPillIndices[node] = maze.getPowerPillIndex(node);
+            // The maze file directions are in MOVE order
+            for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+                neighbours[node * NUM_DIRECTIONS + direction] = maze.getNeighbour(node, direction);
+            }
+        }
+        return new CompiledMaze(maze.getName(), maze.getInitialPacManNodeIndex(), maze.getLairNodeIndex(),
+                maze.getInitialGhostNodeIndex(), xs, ys, neighbours, pillIndices, powerPillIndices,
+                maze.getPillNodes(), maze.getPowerPillNodes());
+    }
+
+    /**
+     * @return The compiled form of the maze, built on first use and shared by every caller
+     */
+    public static CompiledMaze forMaze(Maze maze) {
+        synchronized (cache) {
+            CompiledMaze compiled = cache.get(maze);
+            if (compiled == null) {
+                compiled = build(maze);
+                cache.put(maze, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getInitialPacManNodeIndex() {
+        return initialPacManNodeIndex;
+    }
+
+    public int getLairNodeIndex() {
+        return lairNodeIndex;
+    }
+
+    public int getInitialGhostNodeIndex() {
+        return initialGhostNodeIndex;
+    }
+
+    public int getNumberOfNodes() {
+        return numberOfNodes;
+    }
+
+    public int getX(int node) {
+        return xs[node];
+    }
+
+    public int getY(int node) {
+        return ys[node];
+    }
+
+    /**
+     * @return The neighbouring node reached by the move, -1 if there is none or the move is NEUTRAL
+     */
+    public int getNeighbour(int node, MOVE move) {
+        int direction = move.ordinal();
+        return (direction < NUM_DIRECTIONS) ? neighbours[node * NUM_DIRECTIONS + direction] : -1;
+    }
+
+    /**
+     * @param direction Move ordinal, not NEUTRAL
+     * @return The neighbouring node that way, -1 if none
+     */
+    public int getNeighbour(int node, int direction) {
+        return neighbours[node * NUM_DIRECTIONS + direction];
+    }
+
+    public boolean isPossible(int node, MOVE move) {
+        return getNeighbour(node, move) != -1;
+    }
+
+    public int getNumberOfNeighbours(int node) {
+        return MOVE_SETS[moveMasks[node * NUM_LAST_MOVES + MOVE.NEUTRAL.ordinal()]].length;
+    }
+
+    /**
+     * @return Every move out of the node in MOVE order, shared so not to be modified
+     */
+    public MOVE[] getPossibleMoves(int node) {
+        return MOVE_SETS[moveMasks[node * NUM_LAST_MOVES + MOVE.NEUTRAL.ordinal()]];
+    }
+
+    /**
+     * @return The moves out of the node other than reversing the last move, shared so not to be modified
+     */
+    public MOVE[] getPossibleMoves(int node, MOVE lastMoveMade) {
+        return MOVE_SETS[moveMasks[node * NUM_LAST_MOVES + lastMoveMade.ordinal()]];
+    }
+
+    public boolean isJunction(int node) {
+        return junctions[node];
+    }
+
+    public int getPillIndex(int node) {
+        return pillIndices[node];
+    }
+
+    public int getPowerPillIndex(int node) {
+        return powerPillIndices[node];
+    }
+
+    /**
+     * @return The node of each pill, by pill index
+     */
+    public int[] getPillNodes() {
+        return Arrays.copyOf(pillNodes, pillNodes.length);
+    }
+
+    /**
+     * @return The node of each power pill, by power pill index
+     */
+    public int[] getPowerPillNodes() {
+        return Arrays.copyOf(powerPillNodes, powerPillNodes.length);
+    }
+
+    /**
+     * @return The nodes with more than two neighbours
+     */
+    public int[] getJunctionNodes() {
+        return Arrays.copyOf(junctionNodes, junctionNodes.length);
+    }
+}
@@ -0,0 +1,138 @@
+package maze;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Works out the all pairs shortest path distances for a maze file and writes them out as both the
+ * text triangle the engine reads and the binary form read by {@link DistanceTable}.
+ * <p>
+ * One breadth first search per source node, split across the fork join pool by source. The search from
+ * node "to" fills row "to" of the triangle, the distances to every from &lt;= to, so the searches never
+ * write to the same place.
+ * <p>
+ * Run with the maze files and optionally an output directory after them with -o, by default the
+ * cache directory so the shipped text tables are only replaced when asked for. With no maze files
+ * every maze that comes with the game is done.
+ */
+public final class DistanceGenerator {
+    // Sources searched per task before it stops splitting
+    private static final int SOURCES_PER_TASK = 16;
+
+    private DistanceGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path output = DistanceTable.getCacheDirectory();
+        List<Path> mazes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                output = Paths.get(args[++i]);
+            } else {
+                mazes.add(Paths.get(args[i]));
+            }
+        }
+        if (mazes.isEmpty()) {
+            for (String mazeName : MazeFile.MAZE_NAMES) {
+                mazes.add(MazeFile.getDirectory().resolve(mazeName + ".txt"));
+            }
+        }
+        Files.createDirectories(output);
+        for (Path file : mazes) {
+            long start = System.nanoTime();
+            MazeFile maze = MazeFile.read(file);
+            short[] distances = generate(maze);
+            write(maze, distances, output);
+            System.out.println("Generated distances for " + file + " (" + maze.getNumberOfNodes() + " nodes) in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+    }
+
+    /**
+     * @return The distance triangle, entry {@link DistanceTable#index(int, int)}, -1 for unreachable pairs
+     * @throws IllegalArgumentException If the maze has more than {@link DistanceTable#MAX_NODES} nodes
+     * @throws IllegalStateException    If a distance doesn't fit in a short
+     */
+    public static short[] generate(MazeFile maze) {
+        short[] distances = new short[DistanceTable.entries(maze.getNumberOfNodes())];
+        ForkJoinPool.commonPool().invoke(new Rows(maze, distances, 0, maze.getNumberOfNodes()));
+        return distances;
+    }
+
+    /**
+     * Write the text table d&lt;name&gt; and binary table d&lt;name&gt;.bin into a directory
+     */
+    public static void write(MazeFile maze, short[] distances, Path directory) throws IOException {
+        int entries = DistanceTable.entries(maze.getNumberOfNodes());
+        Path text = directory.resolve(DistanceTable.textFileName(maze.getName()));
+        try (BufferedWriter writer = Files.newBufferedWriter(text, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < entries; i++) {
+                writer.write(Integer.toString(distances[i]));
+                writer.newLine();
+            }
+        }
+        DistanceTableConverter.write(directory.resolve(DistanceTable.binaryFileName(maze.getName())),
+                maze.getNumberOfNodes(), distances);
+    }
+
+    private static final class Rows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MazeFile maze;
+        private final short[] distances;
+        private final int from;
+        private final int to;
+
+        private Rows(MazeFile maze, short[] distances, int from, int to) {
+            this.maze = maze;
+            this.distances = distances;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SOURCES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Rows(maze, distances, from, middle), new Rows(maze, distances, middle, to));
+                return;
+            }
+            int numberOfNodes = maze.getNumberOfNodes();
+            int[] depth = new int[numberOfNodes];
+            int[] queue = new int[numberOfNodes];
+            for (int source = from; source < to; source++) {
+                Arrays.fill(depth, -1);
+                int head = 0;
+                int tail = 0;
+                depth[source] = 0;
+                queue[tail++] = source;
+                while (head < tail) {
+                    int node = queue[head++];
+                    for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                        int neighbour = maze.getNeighbour(node, direction);
+                        if (neighbour != -1 && depth[neighbour] == -1) {
+                            if (depth[node] == Short.MAX_VALUE) {
+                                throw new IllegalStateException("Distance from " + source + " doesn't fit in a short");
+                            }
+                            depth[neighbour] = depth[node] + 1;
+                            queue[tail++] = neighbour;
+                        }
+                    }
+                }
+                int row = DistanceTable.index(0, source);
+                for (int other = 0; other <= source; other++) {
+                    distances[row + other] = (short) depth[other];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package maze;
+
+/**
+ * Something that can tell the shortest path distance between two nodes of a maze
+ */
+public interface DistanceProvider {
+    /**
+     * @param from The node index to start from
+     * @param to   The node index to get to
+     * @return The number of steps between them, -1 if one can't be reached from the other
+     */
+    int getShortestPathDistance(int from, int to);
+}
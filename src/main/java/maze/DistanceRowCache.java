@@ -0,0 +1,189 @@
+package maze;
+
+import java.util.Arrays;
+
+/**
+ * Shortest path distances worked out a row at a time, for mazes too big for an all pairs table.
+ * <p>
+ * A row is every distance from one node, found by a breadth first search on first use. At most
+ * capacity rows are kept, the least recently used going first, so memory is capacity * n shorts
+ * rather than n * n / 2. The maze is taken to be undirected, a row cached for either end answers a query.
+ * Rows are found through an int array by node and kept in use order in a linked list of primitive
+ * slot indices, so a query doesn't allocate once the rows are all there.
+ * Queries are synchronized, the counters let the capacity be tuned against the hit rate.
+ */
+public final class DistanceRowCache implements DistanceProvider {
+    private static final short UNREACHABLE = -1;
+    private static final int NONE = -1;
+
+    private final CompiledMaze maze;
+    private final int capacity;
+    // Rows live in slots, allocated on first use and reused when their row is evicted
+    private final short[][] rows;
+    // The slot holding each node's row, NONE if it isn't cached, and the node each slot holds
+    private final int[] slotOf;
+    private final int[] nodeOf;
+    // Slots in order of use, most recent at the head, as a doubly linked list
+    private final int[] previous;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+    private final int[] queue;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maze     The maze
+     * @param capacity The most rows to keep at once
+     */
+    public DistanceRowCache(CompiledMaze maze, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, was " + capacity);
+        }
+        this.maze = maze;
+        this.capacity = capacity;
+        int numberOfNodes = maze.getNumberOfNodes();
+        // There can never be more rows than nodes
+        int slots = Math.min(capacity, numberOfNodes);
+        this.rows = new short[slots][];
+        this.nodeOf = new int[slots];
+        this.previous = new int[slots];
+        this.next = new int[slots];
+        this.slotOf = new int[numberOfNodes];
+        Arrays.fill(slotOf, NONE);
+        this.queue = new int[numberOfNodes];
+    }
+
+    @Override
+    public synchronized int getShortestPathDistance(int from, int to) {
+        int slot = slotOf[from];
+        if (slot != NONE) {
+            hits++;
+            moveToHead(slot);
+            return rows[slot][to];
+        }
+        slot = slotOf[to];
+        if (slot != NONE) {
+            hits++;
+            moveToHead(slot);
+            return rows[slot][from];
+        }
+        misses++;
+        if (size < rows.length) {
+            slot = size++;
+            rows[slot] = new short[maze.getNumberOfNodes()];
+        } else {
+            slot = tail;
+            unlink(slot);
+            slotOf[nodeOf[slot]] = NONE;
+            evictions++;
+        }
+        search(from, rows[slot]);
+        slotOf[from] = slot;
+        nodeOf[slot] = from;
+        pushHead(slot);
+        return rows[slot][to];
+    }
+
+    private void moveToHead(int slot) {
+        if (slot != head) {
+            unlink(slot);
+            pushHead(slot);
+        }
+    }
+
+    private void unlink(int slot) {
+        if (previous[slot] != NONE) {
+            next[previous[slot]] = next[slot];
+        } else {
+            head = next[slot];
+        }
+        if (next[slot] != NONE) {
+            previous[next[slot]] = previous[slot];
+        } else {
+            tail = previous[slot];
+        }
+    }
+
+    private void pushHead(int slot) {
+        previous[slot] = NONE;
+        next[slot] = head;
+        if (head != NONE) {
+            previous[head] = slot;
+        } else {
+            tail = slot;
+        }
+        head = slot;
+    }
+
+    private void search(int from, short[] row) {
+        Arrays.fill(row, UNREACHABLE);
+        row[from] = 0;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = from;
+        while (head < tail) {
+            int node = queue[head++];
+            int distance = row[node] + 1;
+            for (int direction = 0; direction < CompiledMaze.NUM_DIRECTIONS; direction++) {
+                int neighbour = maze.getNeighbour(node, direction);
+                if (neighbour != -1 && row[neighbour] == UNREACHABLE) {
+                    if (distance > Short.MAX_VALUE) {
+                        throw new IllegalStateException("Distance from " + from + " doesn't fit in a short");
+                    }
+                    row[neighbour] = (short) distance;
+                    queue[tail++] = neighbour;
+                }
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long queries = hits + misses;
+        return (queries == 0) ? 0 : (double) hits / queries;
+    }
+
+    /**
+     * Forget every row and zero the counters, keeping the row buffers for reuse
+     */
+    public synchronized void clear() {
+        for (int slot = 0; slot < size; slot++) {
+            slotOf[nodeOf[slot]] = NONE;
+        }
+        size = 0;
+        head = NONE;
+        tail = NONE;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DistanceRowCache{rows: " + size + "/" + capacity
+                + " hits: " + hits + " misses: " + misses + " evictions: " + evictions + "}";
+    }
+}
@@ -0,0 +1,156 @@
+package maze;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * All pairs shortest path distances for a maze, served straight from a memory mapped binary file.
+ * <p>
+ * The file holds the same triangle as the text tables in data/distances, the distance between
+ * from &lt;= to being entry to * (to + 1) / 2 + from, but as big endian shorts after a short header:
+ * magic, version and number of nodes as ints. Nothing is parsed on load and the mapping lives off heap,
+ * shared with every other process mapping the same file.
+ * <p>
+ * The text tables are read from the directory given by the pacman.distances.dir system property,
+ * data/distances under the resources by default, or from data/distances on the classpath when that
+ * hasn't got them. What is worked out at run time goes in the cache directory given by the
+ * pacman.cache.dir system property, pacman-maze-cache under the temporary directory by default.
+ * {@link #forMaze(String)} serves the shipped mazes from their {@link MazeSnapshot} there.
+ * <p>
+ * Tables go up to {@link #MAX_NODES} nodes, the most whose file can be mapped in one piece. Bigger mazes
+ * need {@link DistanceRowCache}.
+ */
+public final class DistanceTable implements DistanceProvider {
+    public static final int MAGIC = 0x50444454;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 12;
+    // The largest n with n * (n + 1) shorts and the header under 2GB, so every index also fits in an int
+    public static final int MAX_NODES = 46340;
+    public static final String DIRECTORY_PROPERTY = "pacman.distances.dir";
+    public static final String DEFAULT_DIRECTORY = "src/main/resources/data/distances";
+    public static final String CACHE_DIRECTORY_PROPERTY = "pacman.cache.dir";
+    public static final String DEFAULT_CACHE_DIRECTORY = "pacman-maze-cache";
+
+    private static final Map<Path, DistanceTable> cache = new HashMap<>();
+
+    private final int numberOfNodes;
+    private final ShortBuffer distances;
+
+    /**
+     * @param buffer A whole table, header first, from position zero to its capacity
+     * @param source Where it came from, for error messages
+     */
+    DistanceTable(ByteBuffer buffer, Object source) throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(source + " is not a distance table");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(source + " is version " + buffer.getInt(4) + ", expected " + VERSION);
+        }
+        numberOfNodes = buffer.getInt(8);
+        if (numberOfNodes < 0 || numberOfNodes > MAX_NODES) {
+            throw new IOException(source + " claims " + numberOfNodes + " nodes, tables only go up to " + MAX_NODES);
+        }
+        buffer.position(HEADER_BYTES);
+        distances = buffer.slice().asShortBuffer();
+        if (distances.capacity() != entries(numberOfNodes)) {
+            throw new IOException(source + " should hold " + entries(numberOfNodes) + " distances, found " + distances.capacity());
+        }
+    }
+
+    /**
+     * Map a binary distance table
+     *
+     * @param file The binary table
+     * @return The table, shared with anyone else who opened the same file
+     * @throws IOException If it couldn't be read or isn't a distance table
+     */
+    public static DistanceTable open(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        synchronized (cache) {
+            DistanceTable table = cache.get(key);
+            if (table == null) {
+                try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+                    // The mapping stays valid after the channel is closed
+                    table = new DistanceTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), key);
+                }
+                cache.put(key, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * The table for one of the shipped mazes, from its {@link MazeSnapshot}, which is worked out from
+     * the maze file the first time it is asked for
+     *
+     * @param mazeName The maze name, as in the first field of the maze file
+     * @return The table, shared by every caller
+     * @throws IOException If it could neither be read nor worked out
+     */
+    public static DistanceTable forMaze(String mazeName) throws IOException {
+        return MazeSnapshot.forMaze(mazeName).getDistances();
+    }
+
+    public static Path getDirectory() {
+        return Paths.get(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Where the tables and snapshots worked out at run time are kept, out of the source tree
+     */
+    public static Path getCacheDirectory() {
+        String directory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        if (directory != null) {
+            return Paths.get(directory);
+        }
+        return Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_CACHE_DIRECTORY);
+    }
+
+    public static String textFileName(String mazeName) {
+        return "d" + mazeName;
+    }
+
+    public static String binaryFileName(String mazeName) {
+        return "d" + mazeName + ".bin";
+    }
+
+    /**
+     * @return How many distances the triangle for this many nodes holds
+     * @throws IllegalArgumentException If there are more than {@link #MAX_NODES} nodes
+     */
+    public static int entries(int numberOfNodes) {
+        if (numberOfNodes < 0 || numberOfNodes > MAX_NODES) {
+            throw new IllegalArgumentException("Distance tables only go up to " + MAX_NODES + " nodes, not " + numberOfNodes);
+        }
+        return numberOfNodes * (numberOfNodes + 1) / 2;
+    }
+
+    /**
+     * @return Where the distance between from and to is in the triangle, both under {@link #MAX_NODES}
+     */
+    public static int index(int from, int to) {
+        if (from > to) {
+            int temp = from;
+            from = to;
+            to = temp;
+        }
+        return to * (to + 1) / 2 + from;
+    }
+
+    @Override
+    public int getShortestPathDistance(int from, int to) {
+        return distances.get(index(from, to));
+    }
+
+    public int getNumberOfNodes() {
+        return numberOfNodes;
+    }
+}
@@ -0,0 +1,124 @@
+package maze;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Turns the text distance tables into the binary form read by {@link DistanceTable}.
+ * <p>
+ * Run with the text tables to convert, or with nothing to convert da to dd in the distances directory
+ * into the cache directory.
+ */
+public final class DistanceTableConverter {
+    private DistanceTableConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            Path directory = DistanceTable.getDirectory();
+            for (String mazeName : MazeFile.MAZE_NAMES) {
+                Path text = directory.resolve(DistanceTable.textFileName(mazeName));
+                Path binary = DistanceTable.getCacheDirectory().resolve(DistanceTable.binaryFileName(mazeName));
+                convert(text, binary);
+                System.out.println("Converted " + text + " to " + binary);
+            }
+        } else {
+            for (String name : args) {
+                Path text = Paths.get(name);
+                Path binary = Paths.get(name + ".bin");
+                convert(text, binary);
+                System.out.println("Converted " + text + " to " + binary);
+            }
+        }
+    }
+
+    /**
+     * Convert one text table, one distance per line in triangle order
+     *
+     * @param text   The text table
+     * @param binary Where to write the binary table
+     * @throws IOException If the text couldn't be read, isn't a whole triangle or has a distance too large
+     */
+    public static void convert(Path text, Path binary) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(text, StandardCharsets.US_ASCII)) {
+            convert(reader, text, binary);
+        }
+    }
+
+    /**
+     * As {@link #convert(Path, Path)}, reading the text table from a reader
+     *
+     * @param text Where the text table came from, for error messages
+     */
+    public static void convert(BufferedReader reader, Object text, Path binary) throws IOException {
+        short[] distances = new short[1 << 16];
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            int distance = Integer.parseInt(line.trim());
+            if (distance < -1 || distance > Short.MAX_VALUE) {
+                throw new IOException("Distance " + distance + " on line " + (count + 1) + " of " + text + " doesn't fit");
+            }
+            if (count == distances.length) {
+                short[] larger = new short[distances.length * 2];
+                System.arraycopy(distances, 0, larger, 0, count);
+                distances = larger;
+            }
+            distances[count++] = (short) distance;
+        }
+        int numberOfNodes = (int) Math.round((Math.sqrt(8.0d * count + 1) - 1) / 2);
+        if (DistanceTable.entries(numberOfNodes) != count) {
+            throw new IOException(text + " holds " + count + " distances, which isn't a whole triangle");
+        }
+        write(binary, numberOfNodes, distances);
+    }
+
+    /**
+     * Write a binary table, going through a temporary file so a reader never sees half of one
+     *
+     * @param binary        Where to write it
+     * @param numberOfNodes Nodes in the maze
+     * @param distances     At least {@link DistanceTable#entries(int)} distances in triangle order
+     * @throws IOException If it couldn't be written
+     */
+    public static void write(Path binary, int numberOfNodes, short[] distances) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedBytes(numberOfNodes));
+        encode(buffer, numberOfNodes, distances);
+        buffer.rewind();
+
+        Path absolute = binary.toAbsolutePath();
+        Files.createDirectories(absolute.getParent());
+        Path temporary = absolute.resolveSibling(absolute.getFileName() + "." + System.nanoTime() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static int encodedBytes(int numberOfNodes) {
+        return DistanceTable.HEADER_BYTES + DistanceTable.entries(numberOfNodes) * 2;
+    }
+
+    /**
+     * Put a binary table, as it is laid out on disk, at the buffer's position and move past it
+     */
+    static void encode(ByteBuffer buffer, int numberOfNodes, short[] distances) {
+        int entries = DistanceTable.entries(numberOfNodes);
+        buffer.putInt(DistanceTable.MAGIC);
+        buffer.putInt(DistanceTable.VERSION);
+        buffer.putInt(numberOfNodes);
+        buffer.asShortBuffer().put(distances, 0, entries);
+        buffer.position(buffer.position() + entries * 2);
+    }
+}
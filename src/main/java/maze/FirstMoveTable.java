@@ -0,0 +1,348 @@
+package maze;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static pacman.game.Constants.MOVE;
+
+/**
+ * The first move to make from every node towards, or away from, every other node, so a next move
+ * query is a single array read.
+ * <p>
+ * Moves are chosen as the engine's greedy next move queries choose them with DM.PATH: of the moves
+ * allowed, the one whose neighbour is nearest (furthest) by distance, the first in MOVE order on a tie.
+ * Allowed moves are all of them for NEUTRAL or no last move, otherwise all but the reverse of the last move.
+ * Without a last move the distance is the shortest path distance, which gives getNextMoveTowardsTarget
+ * and getNextMoveAwayFromTarget. With one, away from the target still uses the shortest path distance
+ * as getApproximateNextMoveAwayFromTarget does. Towards it uses the distance from the neighbour that
+ * never reverses, the neighbour being entered with the ghost's own last move as the engine's
+ * getNextMoveTowardsTarget has it. Those distances come from a breadth first search back from each
+ * target over (node, last move) states.
+ * <p>
+ * Each move takes two bits, sixteen to an int, in rows of one (direction, last move, from) each.
+ * Saved in the same layout and memory mapped when read back, the shipped mazes' tables in their {@link MazeSnapshot}.
+ */
+public final class FirstMoveTable {
+    public static final int MAGIC = 0x50464D54;
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 12;
+
+    private static final MOVE[] MOVES = MOVE.values();
+    private static final int NUM_LAST_MOVES = MOVES.length;
+    private static final int TOWARDS = 0;
+    private static final int AWAY = 1;
+    private static final int MOVES_PER_INT = 16;
+
+    private final int numberOfNodes;
+    private final int rowInts;
+    // How many moves are allowed from each (from, last move), indexed by from * NUM_LAST_MOVES + last move
+    private final ByteBuffer options;
+    private final IntBuffer moves;
+
+    private FirstMoveTable(int numberOfNodes, ByteBuffer options, IntBuffer moves) {
+        this.numberOfNodes = numberOfNodes;
+        this.rowInts = rowInts(numberOfNodes);
+        this.options = options;
+        this.moves = moves;
+    }
+
+    private static int rowInts(int numberOfNodes) {
+        return (numberOfNodes + MOVES_PER_INT - 1) / MOVES_PER_INT;
+    }
+
+    // The options are padded out to a whole number of ints so the moves are aligned
+    private static int optionsBytes(int numberOfNodes) {
+        return (numberOfNodes * NUM_LAST_MOVES + 3) & ~3;
+    }
+
+    private static int movesInts(int numberOfNodes) {
+        return 2 * NUM_LAST_MOVES * numberOfNodes * rowInts(numberOfNodes);
+    }
+
+    /**
+     * Work the table out, in parallel by from node, and the towards moves with a last move by target
+     *
+     * @param maze      The maze
+     * @param distances Shortest path distances on it
+     * @return The table
+     */
+    public static FirstMoveTable build(MazeFile maze, DistanceProvider distances) {
+        int numberOfNodes = maze.getNumberOfNodes();
+        int rowInts = rowInts(numberOfNodes);
+        byte[] options = new byte[optionsBytes(numberOfNodes)];
+        int[] moves = new int[movesInts(numberOfNodes)];
+
+        // Each from node fills rows of its own, so nothing is written twice
+        IntStream.range(0, numberOfNodes).parallel().forEach(from -> {
+            int[] candidates = new int[MazeFile.NUM_DIRECTIONS];
+            int[] neighbours = new int[MazeFile.NUM_DIRECTIONS];
+            for (int lastMove = 0; lastMove < NUM_LAST_MOVES; lastMove++) {
+                int reverse = MOVES[lastMove].opposite().ordinal();
+                int count = 0;
+                for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                    int neighbour = maze.getNeighbour(from, direction);
+                    if (neighbour != -1 && (MOVES[lastMove] == MOVE.NEUTRAL || direction != reverse)) {
+                        candidates[count] = MazeFile.DIRECTIONS[direction].ordinal();
+                        neighbours[count++] = neighbour;
+                    }
+                }
+                options[from * NUM_LAST_MOVES + lastMove] = (byte) count;
+
+                // Towards with a last move measures without reversing, that is filled in below
+                boolean towardsHere = MOVES[lastMove] == MOVE.NEUTRAL;
+                int towardsRow = ((TOWARDS * NUM_LAST_MOVES + lastMove) * numberOfNodes + from) * rowInts;
+                int awayRow = ((AWAY * NUM_LAST_MOVES + lastMove) * numberOfNodes + from) * rowInts;
+                for (int to = 0; to < numberOfNodes; to++) {
+                    int towards = 0;
+                    int away = 0;
+                    int minDistance = Integer.MAX_VALUE;
+                    int maxDistance = Integer.MIN_VALUE;
+                    for (int k = 0; k < count; k++) {
+                        int distance = distances.getShortestPathDistance(neighbours[k], to);
+                        if (distance < minDistance) {
+                            minDistance = distance;
+                            towards = candidates[k];
+                        }
+                        if (distance > maxDistance) {
+                            maxDistance = distance;
+                            away = candidates[k];
+                        }
+                    }
+                    int shift = (to % MOVES_PER_INT) * 2;
+                    if (towardsHere) {
+                        moves[towardsRow + to / MOVES_PER_INT] |= towards << shift;
+                    }
+                    moves[awayRow + to / MOVES_PER_INT] |= away << shift;
+                }
+            }
+        });
+
+        // A block of targets shares its ints, so each task takes a whole block
+        int[][] predecessors = predecessors(maze);
+        IntStream.range(0, rowInts).parallel().forEach(block -> {
+            int[] distance = new int[numberOfNodes * NUM_LAST_MOVES];
+            int[] queue = new int[numberOfNodes * NUM_LAST_MOVES];
+            for (int to = block * MOVES_PER_INT; to < Math.min(numberOfNodes, (block + 1) * MOVES_PER_INT); to++) {
+                searchWithoutReversing(maze, predecessors, to, distance, queue);
+                int shift = (to % MOVES_PER_INT) * 2;
+                for (int from = 0; from < numberOfNodes; from++) {
+                    for (int lastMove = 0; lastMove < MazeFile.NUM_DIRECTIONS; lastMove++) {
+                        int reverse = MOVES[lastMove].opposite().ordinal();
+                        int towards = -1;
+                        int minDistance = Integer.MAX_VALUE;
+                        for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                            int neighbour = maze.getNeighbour(from, direction);
+                            if (neighbour == -1 || direction == reverse) continue;
+                            // Where the target can't be reached, as the lair can't, the first move allowed
+                            int steps = distance[neighbour * NUM_LAST_MOVES + lastMove];
+                            if (steps == -1) {
+                                steps = Integer.MAX_VALUE - 1;
+                            }
+                            if (steps < minDistance) {
+                                minDistance = steps;
+                                towards = MazeFile.DIRECTIONS[direction].ordinal();
+                            }
+                        }
+                        if (towards == -1) continue;
+                        int towardsRow = ((TOWARDS * NUM_LAST_MOVES + lastMove) * numberOfNodes + from) * rowInts;
+                        moves[towardsRow + to / MOVES_PER_INT] |= towards << shift;
+                    }
+                }
+            }
+        });
+        return new FirstMoveTable(numberOfNodes, ByteBuffer.wrap(options), IntBuffer.wrap(moves));
+    }
+
+    // The nodes each (node, direction) is reached from by moving that way, indexed by node * NUM_DIRECTIONS + direction
+    private static int[][] predecessors(MazeFile maze) {
+        int numberOfNodes = maze.getNumberOfNodes();
+        int[] counts = new int[numberOfNodes * MazeFile.NUM_DIRECTIONS];
+        for (int node = 0; node < numberOfNodes; node++) {
+            for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                int neighbour = maze.getNeighbour(node, direction);
+                if (neighbour != -1) {
+                    counts[neighbour * MazeFile.NUM_DIRECTIONS + direction]++;
+                }
+            }
+        }
+        int[][] predecessors = new int[counts.length][];
+        for (int i = 0; i < counts.length; i++) {
+            predecessors[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int node = 0; node < numberOfNodes; node++) {
+            for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                int neighbour = maze.getNeighbour(node, direction);
+                if (neighbour != -1) {
+                    int i = neighbour * MazeFile.NUM_DIRECTIONS + direction;
+                    predecessors[i][counts[i]++] = node;
+                }
+            }
+        }
+        return predecessors;
+    }
+
+    /**
+     * Steps to the target from every (node, last move), never reversing, -1 where it can't be reached.
+     * Worked backwards from the target: (u, last) steps to (v, d) if moving d from u reaches v and d
+     * doesn't reverse last, and every state at the target is already there
+     */
+    private static void searchWithoutReversing(MazeFile maze, int[][] predecessors, int target, int[] distance, int[] queue) {
+        Arrays.fill(distance, -1);
+        int head = 0;
+        int tail = 0;
+        for (int lastMove = 0; lastMove < NUM_LAST_MOVES; lastMove++) {
+            distance[target * NUM_LAST_MOVES + lastMove] = 0;
+            queue[tail++] = target * NUM_LAST_MOVES + lastMove;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            int node = state / NUM_LAST_MOVES;
+            int direction = state % NUM_LAST_MOVES;
+            if (direction >= MazeFile.NUM_DIRECTIONS) continue;
+            int reversing = MOVES[direction].opposite().ordinal();
+            int steps = distance[state] + 1;
+            for (int previous : predecessors[node * MazeFile.NUM_DIRECTIONS + direction]) {
+                for (int lastMove = 0; lastMove < NUM_LAST_MOVES; lastMove++) {
+                    int before = previous * NUM_LAST_MOVES + lastMove;
+                    if (lastMove != reversing && distance[before] == -1) {
+                        distance[before] = steps;
+                        queue[tail++] = before;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Map a persisted table
+     *
+     * @param file The table
+     * @return The table
+     * @throws IOException If it couldn't be read or isn't a first move table
+     */
+    public static FirstMoveTable open(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return read(buffer, file);
+    }
+
+    /**
+     * @param buffer A whole table, header first, from position zero to its capacity
+     * @param source Where it came from, for error messages
+     */
+    static FirstMoveTable read(ByteBuffer buffer, Object source) throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(source + " is not a first move table");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(source + " is version " + buffer.getInt(4) + ", expected " + VERSION);
+        }
+        int numberOfNodes = buffer.getInt(8);
+        long expected = encodedBytes(numberOfNodes);
+        if (buffer.capacity() != expected) {
+            throw new IOException(source + " should be " + expected + " bytes, found " + buffer.capacity());
+        }
+        buffer.position(HEADER_BYTES);
+        ByteBuffer options = buffer.slice();
+        buffer.position(HEADER_BYTES + optionsBytes(numberOfNodes));
+        IntBuffer moves = buffer.slice().asIntBuffer();
+        return new FirstMoveTable(numberOfNodes, options, moves);
+    }
+
+    /**
+     * The table for one of the shipped mazes, from its {@link MazeSnapshot}, which is worked out from
+     * the maze file the first time it is asked for
+     *
+     * @param mazeName The maze name, as in the first field of the maze file
+     * @return The table, shared by every caller
+     * @throws IOException If it could neither be read nor worked out
+     */
+    public static FirstMoveTable forMaze(String mazeName) throws IOException {
+        return MazeSnapshot.forMaze(mazeName).getFirstMoves();
+    }
+
+    static int encodedBytes(int numberOfNodes) {
+        return HEADER_BYTES + optionsBytes(numberOfNodes) + 4 * movesInts(numberOfNodes);
+    }
+
+    /**
+     * Put the table, as it is laid out on disk, at the buffer's position and move past it
+     */
+    void encode(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(numberOfNodes);
+        for (int i = 0; i < optionsBytes(numberOfNodes); i++) {
+            buffer.put(options.get(i));
+        }
+        for (int i = 0; i < movesInts(numberOfNodes); i++) {
+            buffer.putInt(moves.get(i));
+        }
+    }
+
+    /**
+     * Write the table out, going through a temporary file so a reader never sees half of one
+     */
+    public void save(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedBytes(numberOfNodes));
+        encode(buffer);
+        buffer.rewind();
+
+        Path absolute = file.toAbsolutePath();
+        Files.createDirectories(absolute.getParent());
+        Path temporary = absolute.resolveSibling(absolute.getFileName() + "." + System.nanoTime() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public MOVE getNextMoveTowardsTarget(int from, int to) {
+        return lookup(TOWARDS, MOVE.NEUTRAL, from, to);
+    }
+
+    /**
+     * As the engine's getNextMoveTowardsTarget with a last move and DM.PATH, measuring without reversing
+     */
+    public MOVE getNextMoveTowardsTarget(int from, int to, MOVE lastMoveMade) {
+        return lookup(TOWARDS, lastMoveMade, from, to);
+    }
+
+    public MOVE getNextMoveAwayFromTarget(int from, int to) {
+        return lookup(AWAY, MOVE.NEUTRAL, from, to);
+    }
+
+    /**
+     * As the engine's getApproximateNextMoveAwayFromTarget with DM.PATH
+     */
+    public MOVE getApproximateNextMoveAwayFromTarget(int from, int to, MOVE lastMoveMade) {
+        return lookup(AWAY, lastMoveMade, from, to);
+    }
+
+    public int getNumberOfNodes() {
+        return numberOfNodes;
+    }
+
+    // null where no move is allowed, as the engine gives
+    private MOVE lookup(int direction, MOVE lastMoveMade, int from, int to) {
+        int lastMove = (lastMoveMade == null) ? MOVE.NEUTRAL.ordinal() : lastMoveMade.ordinal();
+        if (options.get(from * NUM_LAST_MOVES + lastMove) == 0) {
+            return null;
+        }
+        int row = ((direction * NUM_LAST_MOVES + lastMove) * numberOfNodes + from) * rowInts;
+        return MOVES[(moves.get(row + to / MOVES_PER_INT) >>> ((to % MOVES_PER_INT) * 2)) & 3];
+    }
+}
@@ -0,0 +1,397 @@
+package maze;
+
+import pacman.game.internal.Maze;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static pacman.game.Constants.MOVE;
+
+/**
+ * The maze boiled down to its decision points and the corridors between them.
+ * <p>
+ * Vertices are the nodes without exactly two neighbours, so the junctions plus any dead ends.
+ * Every corridor is held as two directed edges, one each way. An edge leaves its start vertex with its
+ * entry move and arrives at its end vertex having last made its exit move. Steps along it are numbered
+ * by offset, from 0 at the start vertex to the length at the end vertex.
+ * Each edge keeps its nodes, and the pill and power pill indices along it as a range into a shared
+ * array. Only the corridor nodes are included, not the vertices at either end, so pills aren't counted twice.
+ * <p>
+ * Every corridor node also maps to one of its two edges and its offset along it. A loop of corridor
+ * with no vertex on it at all can't be reached by walking from a vertex, so it is left unmapped.
+ */
+public final class JunctionGraph {
+    private static final MOVE[] MOVES = MOVE.values();
+    private static final int NUM_DIRECTIONS = MazeFile.NUM_DIRECTIONS;
+
+    private static final Map<Maze, JunctionGraph> cache = new WeakHashMap<>();
+
+    private final int numberOfNodes;
+    private final int[] vertexNodes;
+    // Vertex id by node, -1 for corridor nodes
+    private final int[] vertices;
+    // Edge leaving a vertex node each way, by node * NUM_DIRECTIONS + move, -1 where there is none
+    private final int[] outgoing;
+
+    private final int numberOfEdges;
+    private final int[] edgeStarts;
+    private final int[] edgeEnds;
+    private final byte[] entryMoves;
+    private final byte[] exitMoves;
+    private final int[] reverses;
+    // The nodes at offsets 1 to length of edge e are edgeNodes[nodeStart[e]] to edgeNodes[nodeStart[e + 1] - 1]
+    private final int[] nodeStart;
+    private final int[] edgeNodes;
+    private final int[] pillStart;
+    private final int[] edgePills;
+    private final int[] powerPillStart;
+    private final int[] edgePowerPills;
+
+    // Where each corridor node lies, -1 for vertices and unmapped nodes
+    private final int[] nodeEdges;
+    private final int[] nodeOffsets;
+
+    private JunctionGraph(int[] neighbours, int[] pillIndices, int[] powerPillIndices) {
+        numberOfNodes = pillIndices.length;
+        vertices = new int[numberOfNodes];
+        int numberOfVertices = 0;
+        for (int node = 0; node < numberOfNodes; node++) {
+            vertices[node] = (countNeighbours(neighbours, node) == 2) ? -1 : numberOfVertices++;
+        }
+        vertexNodes = new int[numberOfVertices];
+        int edgeCount = 0;
+        for (int node = 0; node < numberOfNodes; node++) {
+            if (vertices[node] != -1) {
+                vertexNodes[vertices[node]] = node;
+                edgeCount += countNeighbours(neighbours, node);
+            }
+        }
+        numberOfEdges = edgeCount;
+        edgeStarts = new int[numberOfEdges];
+        edgeEnds = new int[numberOfEdges];
+        entryMoves = new byte[numberOfEdges];
+        exitMoves = new byte[numberOfEdges];
+        reverses = new int[numberOfEdges];
+        nodeStart = new int[numberOfEdges + 1];
+        pillStart = new int[numberOfEdges + 1];
+        powerPillStart = new int[numberOfEdges + 1];
+        outgoing = new int[numberOfNodes * NUM_DIRECTIONS];
+        Arrays.fill(outgoing, -1);
+        nodeEdges = new int[numberOfNodes];
+        nodeOffsets = new int[numberOfNodes];
+        Arrays.fill(nodeEdges, -1);
+        Arrays.fill(nodeOffsets, -1);
+
+        // Walk every corridor twice, once to size the arrays and once to fill them
+        int edge = 0;
+        int totalNodes = 0;
+        int totalPills = 0;
+        int totalPowerPills = 0;
+        for (int vertexNode : vertexNodes) {
+            for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+                if (neighbours[vertexNode * NUM_DIRECTIONS + direction] == -1) continue;
+                int move = direction;
+                int node = neighbours[vertexNode * NUM_DIRECTIONS + direction];
+                int steps = 1;
+                while (vertices[node] == -1) {
+                    if (pillIndices[node] != -1) totalPills++;
+                    if (powerPillIndices[node] != -1) totalPowerPills++;
+                    move = nextMove(neighbours, node, move);
+                    node = neighbours[node * NUM_DIRECTIONS + move];
+                    steps++;
+                }
+                outgoing[vertexNode * NUM_DIRECTIONS + direction] = edge;
+                edgeStarts[edge] = vertexNode;
+                edgeEnds[edge] = node;
+                entryMoves[edge] = (byte) direction;
+                exitMoves[edge] = (byte) move;
+                nodeStart[edge + 1] = nodeStart[edge] + steps;
+                totalNodes += steps;
+                edge++;
+            }
+        }
+        edgeNodes = new int[totalNodes];
+        edgePills = new int[totalPills];
+        edgePowerPills = new int[totalPowerPills];
+        for (edge = 0; edge < numberOfEdges; edge++) {
+            int node = edgeStarts[edge];
+            int move = entryMoves[edge];
+            pillStart[edge + 1] = pillStart[edge];
+            powerPillStart[edge + 1] = powerPillStart[edge];
+            for (int offset = 1; offset <= getLength(edge); offset++) {
+                node = neighbours[node * NUM_DIRECTIONS + move];
+                edgeNodes[nodeStart[edge] + offset - 1] = node;
+                if (offset == getLength(edge)) break;
+                if (pillIndices[node] != -1) edgePills[pillStart[edge + 1]++] = pillIndices[node];
+                if (powerPillIndices[node] != -1) edgePowerPills[powerPillStart[edge + 1]++] = powerPillIndices[node];
+                if (nodeEdges[node] == -1) {
+                    nodeEdges[node] = edge;
+                    nodeOffsets[node] = offset;
+                }
+                move = nextMove(neighbours, node, move);
+            }
+            reverses[edge] = outgoing[edgeEnds[edge] * NUM_DIRECTIONS + MOVES[exitMoves[edge]].opposite().ordinal()];
+        }
+    }
+
+    private static int countNeighbours(int[] neighbours, int node) {
+        int count = 0;
+        for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+            if (neighbours[node * NUM_DIRECTIONS + direction] != -1) count++;
+        }
+        return count;
+    }
+
+    // The way on out of a corridor node, the one that isn't back
+    private static int nextMove(int[] neighbours, int node, int arrivalMove) {
+        int back = MOVES[arrivalMove].opposite().ordinal();
+        for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+            if (direction != back && neighbours[node * NUM_DIRECTIONS + direction] != -1) {
+                return direction;
+            }
+        }
+        throw new IllegalStateException("Corridor node " + node + " has no way on");
+    }
+
+    public static JunctionGraph build(MazeFile maze) {
+        int numberOfNodes = maze.getNumberOfNodes();
+        int[] neighbours = new int[numberOfNodes * NUM_DIRECTIONS];
+        int[] pillIndices = new int[numberOfNodes];
+        int[] powerPillIndices = new int[numberOfNodes];
+        for (int node = 0; node < numberOfNodes; node++) {
+            for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+                // MazeFile lists the neighbours in MOVE order
+                neighbours[node * NUM_DIRECTIONS + MazeFile.DIRECTIONS[direction].ordinal()] = maze.getNeighbour(node, direction);
+            }
+            pillIndices[node] = maze.getPillIndex(node);
+            powerPillIndices[node] = maze.getPowerPillIndex(node);
+        }
+        return new JunctionGraph(neighbours, pillIndices, powerPillIndices);
+    }
+
+    public static JunctionGraph build(Maze maze) {
+        int numberOfNodes = maze.graph.length;
+        int[] neighbours = new int[numberOfNodes * NUM_DIRECTIONS];
+        int[] pillIndices = new int[numberOfNodes];
+        int[] powerPillIndices = new int[numberOfNodes];
+        for (int node = 0; node < numberOfNodes; node++) {
+            for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+                Integer neighbour = maze.graph[node].neighbourhood.get(MOVES[direction]);
+                neighbours[node * NUM_DIRECTIONS + direction] = (neighbour == null) ? -1 : neighbour;
+            }
+            pillIndices[node] = maze.graph[node].pillIndex;
+            powerPillIndices[node] = maze.graph[node].powerPillIndex;
+        }
+        return new JunctionGraph(neighbours, pillIndices, powerPillIndices);
+    }
+
+    /**
+     * The graph for a maze, built once and shared
+     */
+    public static JunctionGraph forMaze(Maze maze) {
+        synchronized (cache) {
+            JunctionGraph graph = cache.get(maze);
+            if (graph == null) {
+                graph = build(maze);
+                cache.put(maze, graph);
+            }
+            return graph;
+        }
+    }
+
+    /**
+     * The nearest target by path, searching the vertices rather than every node
+     *
+     * @param node     Where to search from
+     * @param isTarget Which nodes are targets, by node index
+     * @return The nearest target node, -1 if none can be reached
+     */
+    public int getNearestTarget(int node, boolean[] isTarget) {
+        if (isTarget[node]) {
+            return node;
+        }
+        int numberOfVertices = vertexNodes.length;
+        int[] distances = new int[numberOfVertices];
+        boolean[] settled = new boolean[numberOfVertices];
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        int bestDistance = Integer.MAX_VALUE;
+        int best = -1;
+
+        if (vertices[node] != -1) {
+            distances[vertices[node]] = 0;
+        } else if (nodeEdges[node] != -1) {
+            // Look both ways along the corridor, then carry on from the vertex at each end
+            int edge = nodeEdges[node];
+            int offset = nodeOffsets[node];
+            for (int way = 0; way < 2; way++) {
+                int along = (way == 0) ? edge : reverses[edge];
+                int from = (way == 0) ? offset : getLength(edge) - offset;
+                for (int step = from + 1; step <= getLength(along); step++) {
+                    int next = getNode(along, step);
+                    if (isTarget[next]) {
+                        if (step - from < bestDistance) {
+                            bestDistance = step - from;
+                            best = next;
+                        }
+                        break;
+                    }
+                }
+                int end = vertices[edgeEnds[along]];
+                distances[end] = Math.min(distances[end], getLength(along) - from);
+            }
+        } else {
+            return -1;
+        }
+
+        while (true) {
+            int vertex = -1;
+            for (int v = 0; v < numberOfVertices; v++) {
+                if (!settled[v] && distances[v] != Integer.MAX_VALUE && (vertex == -1 || distances[v] < distances[vertex])) {
+                    vertex = v;
+                }
+            }
+            if (vertex == -1 || distances[vertex] >= bestDistance) {
+                return best;
+            }
+            settled[vertex] = true;
+            int vertexNode = vertexNodes[vertex];
+            if (isTarget[vertexNode]) {
+                bestDistance = distances[vertex];
+                best = vertexNode;
+                continue;
+            }
+            for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+                int edge = outgoing[vertexNode * NUM_DIRECTIONS + direction];
+                if (edge == -1) continue;
+                // The end vertex is the last step, so targets on it are found here too
+                for (int step = 1; step <= getLength(edge); step++) {
+                    int next = getNode(edge, step);
+                    if (isTarget[next]) {
+                        if (distances[vertex] + step < bestDistance) {
+                            bestDistance = distances[vertex] + step;
+                            best = next;
+                        }
+                        break;
+                    }
+                }
+                int end = vertices[edgeEnds[edge]];
+                distances[end] = Math.min(distances[end], distances[vertex] + getLength(edge));
+            }
+        }
+    }
+
+    public int getNumberOfNodes() {
+        return numberOfNodes;
+    }
+
+    public int getNumberOfVertices() {
+        return vertexNodes.length;
+    }
+
+    public int getVertexNode(int vertex) {
+        return vertexNodes[vertex];
+    }
+
+    /**
+     * @return The vertex id of the node, -1 if it is a corridor node
+     */
+    public int getVertex(int node) {
+        return vertices[node];
+    }
+
+    public boolean isVertex(int node) {
+        return vertices[node] != -1;
+    }
+
+    /**
+     * @return The edge leaving a vertex node with the move, -1 if there is none
+     */
+    public int getOutgoingEdge(int vertexNode, MOVE move) {
+        return (move == MOVE.NEUTRAL) ? -1 : outgoing[vertexNode * NUM_DIRECTIONS + move.ordinal()];
+    }
+
+    public int getNumberOfEdges() {
+        return numberOfEdges;
+    }
+
+    public int getStart(int edge) {
+        return edgeStarts[edge];
+    }
+
+    public int getEnd(int edge) {
+        return edgeEnds[edge];
+    }
+
+    public int getLength(int edge) {
+        return nodeStart[edge + 1] - nodeStart[edge];
+    }
+
+    public MOVE getEntryMove(int edge) {
+        return MOVES[entryMoves[edge]];
+    }
+
+    public MOVE getExitMove(int edge) {
+        return MOVES[exitMoves[edge]];
+    }
+
+    /**
+     * @return The same corridor walked the other way
+     */
+    public int getReverse(int edge) {
+        return reverses[edge];
+    }
+
+    /**
+     * @param offset Steps from the start, 0 to the length
+     * @return The node that far along
+     */
+    public int getNode(int edge, int offset) {
+        return (offset == 0) ? edgeStarts[edge] : edgeNodes[nodeStart[edge] + offset - 1];
+    }
+
+    /**
+     * The pill indices along the corridor are {@link #getPill(int)} for i from this up to {@link #getPillsEnd(int)}
+     */
+    public int getPillsStart(int edge) {
+        return pillStart[edge];
+    }
+
+    public int getPillsEnd(int edge) {
+        return pillStart[edge + 1];
+    }
+
+    public int getPill(int i) {
+        return edgePills[i];
+    }
+
+    /**
+     * The power pill indices along the corridor are {@link #getPowerPill(int)} for i from this up to
+     * {@link #getPowerPillsEnd(int)}
+     */
+    public int getPowerPillsStart(int edge) {
+        return powerPillStart[edge];
+    }
+
+    public int getPowerPillsEnd(int edge) {
+        return powerPillStart[edge + 1];
+    }
+
+    public int getPowerPill(int i) {
+        return edgePowerPills[i];
+    }
+
+    /**
+     * @return The edge a corridor node is on, -1 for vertices
+     */
+    public int getEdge(int node) {
+        return nodeEdges[node];
+    }
+
+    /**
+     * @return How far along {@link #getEdge(int)} a corridor node is, -1 for vertices
+     */
+    public int getOffset(int node) {
+        return nodeOffsets[node];
+    }
+}
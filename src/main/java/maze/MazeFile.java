@@ -0,0 +1,283 @@
+package maze;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static pacman.game.Constants.MOVE;
+
+/**
+ * A maze read straight from one of the data/mazes text files, without needing the game engine.
+ * <p>
+ * The format is described in data/mazes/readme.txt: a tab separated header line, then one line
+ * per node giving its index, coordinates, neighbours up, right, down and left (-1 if none)
+ * and its pill and power pill indices (-1 if none).
+ */
+public final class MazeFile {
+    // The directions in the order the neighbours are listed
+    public static final MOVE[] DIRECTIONS = {MOVE.UP, MOVE.RIGHT, MOVE.DOWN, MOVE.LEFT};
+    public static final int NUM_DIRECTIONS = DIRECTIONS.length;
+    // The mazes that come with the game
+    public static final String[] MAZE_NAMES = {"a", "b", "c", "d"};
+    public static final String DIRECTORY_PROPERTY = "pacman.mazes.dir";
+    public static final String DEFAULT_DIRECTORY = "src/main/resources/data/mazes";
+
+    private final String name;
+    private final int initialPacManNodeIndex;
+    private final int lairNodeIndex;
+    private final int initialGhostNodeIndex;
+    private final int numberOfNodes;
+    private final int[] xs;
+    private final int[] ys;
+    // Indexed by node * NUM_DIRECTIONS + direction, -1 where there is no neighbour
+    private final int[] neighbours;
+    private final int[] pillIndices;
+    private final int[] powerPillIndices;
+    private final int[] pillNodes;
+    private final int[] powerPillNodes;
+    private final int[] junctionNodes;
+
+    private MazeFile(String name, int initialPacManNodeIndex, int lairNodeIndex, int initialGhostNodeIndex,
+                     int[] xs, int[] ys, int[] neighbours, int[] pillIndices, int[] powerPillIndices,
+                     int numberOfPills, int numberOfPowerPills) {
+        this.name = name;
+        this.initialPacManNodeIndex = initialPacManNodeIndex;
+        this.lairNodeIndex = lairNodeIndex;
+        this.initialGhostNodeIndex = initialGhostNodeIndex;
+        this.numberOfNodes = xs.length;
+        this.xs = xs;
+        this.ys = ys;
+        this.neighbours = neighbours;
+        this.pillIndices = pillIndices;
+        this.powerPillIndices = powerPillIndices;
+
+        pillNodes = new int[numberOfPills];
+        powerPillNodes = new int[numberOfPowerPills];
+        int junctions = 0;
+        for (int node = 0; node < numberOfNodes; node++) {
+            if (pillIndices[node] != -1) pillNodes[pillIndices[node]] = node;
+            if (powerPillIndices[node] != -1) powerPillNodes[powerPillIndices[node]] = node;
+            if (getNumberOfNeighbours(node) > 2) junctions++;
+        }
+        junctionNodes = new int[junctions];
+        junctions = 0;
+        for (int node = 0; node < numberOfNodes; node++) {
+            if (getNumberOfNeighbours(node) > 2) junctionNodes[junctions++] = node;
+        }
+    }
+
+    /**
+     * Read &lt;name&gt;.txt from the directory given by the pacman.mazes.dir system property,
+     * or data/mazes under the resources by default
+     */
+    public static MazeFile forMaze(String mazeName) throws IOException {
+        return read(readBytes(mazeName), mazeName + ".txt");
+    }
+
+    /**
+     * The maze file as it is, from the mazes directory or, when that hasn't got it as when running
+     * from a jar, from data/mazes on the classpath
+     */
+    public static byte[] readBytes(String mazeName) throws IOException {
+        return readData(getDirectory().resolve(mazeName + ".txt"), "/data/mazes/" + mazeName + ".txt");
+    }
+
+    static MazeFile read(byte[] bytes, String source) throws IOException {
+        return read(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.US_ASCII)), source);
+    }
+
+    /**
+     * The file if it exists, otherwise the classpath resource
+     */
+    static InputStream openData(Path file, String resource) throws IOException {
+        if (Files.exists(file)) {
+            return Files.newInputStream(file);
+        }
+        InputStream stream = MazeFile.class.getResourceAsStream(resource);
+        if (stream == null) {
+            throw new IOException("Found neither " + file + " nor " + resource + " on the classpath");
+        }
+        return stream;
+    }
+
+    private static byte[] readData(Path file, String resource) throws IOException {
+        try (InputStream stream = openData(file, resource)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    public static Path getDirectory() {
+        return Paths.get(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY));
+    }
+
+    public static MazeFile read(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+            return read(reader, file.toString());
+        }
+    }
+
+    /**
+     * @param reader Positioned at the header line
+     * @param source What is being read, for error messages
+     */
+    public static MazeFile read(BufferedReader reader, String source) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException(source + " is empty");
+        }
+        String[] header = line.trim().split("\t");
+        if (header.length != 8) {
+            throw new IOException(source + " header should have 8 fields, found " + header.length);
+        }
+        int[] fields = parse(header, 1, source, 1);
+        int numberOfNodes = fields[3];
+        int numberOfPills = fields[4];
+        int numberOfPowerPills = fields[5];
+
+        int[] xs = new int[numberOfNodes];
+        int[] ys = new int[numberOfNodes];
+        int[] neighbours = new int[numberOfNodes * NUM_DIRECTIONS];
+        int[] pillIndices = new int[numberOfNodes];
+        int[] powerPillIndices = new int[numberOfNodes];
+        boolean[] seen = new boolean[numberOfNodes];
+        int lineNumber = 1;
+        int nodes = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) continue;
+            String[] parts = line.trim().split("\t");
+            if (parts.length != 9) {
+                throw new IOException(source + " line " + lineNumber + " should have 9 fields, found " + parts.length);
+            }
+            int[] values = parse(parts, 0, source, lineNumber);
+            int node = values[0];
+            if (node < 0 || node >= numberOfNodes || seen[node]) {
+                throw new IOException(source + " line " + lineNumber + " has a bad or repeated node index " + node);
+            }
+            seen[node] = true;
+            nodes++;
+            xs[node] = values[1];
+            ys[node] = values[2];
+            for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+                int neighbour = values[3 + direction];
+                if (neighbour < -1 || neighbour >= numberOfNodes) {
+                    throw new IOException(source + " line " + lineNumber + " has a neighbour " + neighbour + " outside the maze");
+                }
+                neighbours[node * NUM_DIRECTIONS + direction] = neighbour;
+            }
+            pillIndices[node] = checkIndex(values[7], numberOfPills, "pill", source, lineNumber);
+            powerPillIndices[node] = checkIndex(values[8], numberOfPowerPills, "power pill", source, lineNumber);
+        }
+        if (nodes != numberOfNodes) {
+            throw new IOException(source + " should have " + numberOfNodes + " nodes, found " + nodes);
+        }
+        return new MazeFile(header[0], fields[0], fields[1], fields[2], xs, ys, neighbours,
+                pillIndices, powerPillIndices, numberOfPills, numberOfPowerPills);
+    }
+
+    private static int[] parse(String[] parts, int from, String source, int lineNumber) throws IOException {
+        int[] values = new int[parts.length - from];
+        for (int i = from; i < parts.length; i++) {
+            try {
+                values[i - from] = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IOException(source + " line " + lineNumber + " has a bad number '" + parts[i] + "'", e);
+            }
+        }
+        return values;
+    }
+
+    private static int checkIndex(int index, int limit, String what, String source, int lineNumber) throws IOException {
+        if (index < -1 || index >= limit) {
+            throw new IOException(source + " line " + lineNumber + " has a " + what + " index " + index + " outside the maze");
+        }
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getInitialPacManNodeIndex() {
+        return initialPacManNodeIndex;
+    }
+
+    public int getLairNodeIndex() {
+        return lairNodeIndex;
+    }
+
+    public int getInitialGhostNodeIndex() {
+        return initialGhostNodeIndex;
+    }
+
+    public int getNumberOfNodes() {
+        return numberOfNodes;
+    }
+
+    public int getX(int node) {
+        return xs[node];
+    }
+
+    public int getY(int node) {
+        return ys[node];
+    }
+
+    /**
+     * @param direction Index into {@link #DIRECTIONS}
+     * @return The neighbouring node that way, -1 if none
+     */
+    public int getNeighbour(int node, int direction) {
+        return neighbours[node * NUM_DIRECTIONS + direction];
+    }
+
+    public int getNumberOfNeighbours(int node) {
+        int count = 0;
+        for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+            if (neighbours[node * NUM_DIRECTIONS + direction] != -1) count++;
+        }
+        return count;
+    }
+
+    public int getPillIndex(int node) {
+        return pillIndices[node];
+    }
+
+    public int getPowerPillIndex(int node) {
+        return powerPillIndices[node];
+    }
+
+    /**
+     * @return The node of each pill, by pill index
+     */
+    public int[] getPillNodes() {
+        return Arrays.copyOf(pillNodes, pillNodes.length);
+    }
+
+    /**
+     * @return The node of each power pill, by power pill index
+     */
+    public int[] getPowerPillNodes() {
+        return Arrays.copyOf(powerPillNodes, powerPillNodes.length);
+    }
+
+    /**
+     * @return The nodes with more than two neighbours
+     */
+    public int[] getJunctionNodes() {
+        return Arrays.copyOf(junctionNodes, junctionNodes.length);
+    }
+}
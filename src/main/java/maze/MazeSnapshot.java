@@ -0,0 +1,291 @@
+package maze;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+
+/**
+ * The tables worked out from a maze file, kept on disk so a run can start without working them out again:
+ * the {@link DistanceTable} and the {@link FirstMoveTable}. This is where {@link DistanceTable#forMaze(String)}
+ * and {@link FirstMoveTable#forMaze(String)} get them from. The {@link CompiledMaze} isn't kept, it is
+ * quick to build and has to be built from the game's own maze to be shared with what indexes it.
+ * <p>
+ * One file per maze, s&lt;maze name&gt;.bin in the cache directory. After a header of magic, version,
+ * the SHA-256 of the maze file it was made from and a CRC32 of the rest come two sections, each an int
+ * length, padding to eight bytes and its contents padded to eight bytes: the distance table and the
+ * first move table exactly as in their own files. The file is memory mapped and the tables are read
+ * straight from the mapping. If the maze file has changed, or the snapshot is from another version or
+ * fails its checksum, it is rebuilt from the maze file and written again.
+ * <p>
+ * {@link #preloadAll()} starts loading the shipped mazes in parallel in the background.
+ * {@link #forMaze(String)} waits for the load if one is under way, {@link #getIfLoaded(String)} doesn't.
+ */
+public final class MazeSnapshot {
+    public static final int MAGIC = 0x50534E50;
+    public static final int VERSION = 2;
+    public static final int HASH_BYTES = 32;
+    public static final int HEADER_BYTES = 8 + HASH_BYTES + 8;
+    private static final int ALIGNMENT = 8;
+
+    private static final Map<String, CompletableFuture<MazeSnapshot>> loads = new HashMap<>();
+
+    private final String name;
+    private final byte[] mazeHash;
+    private final DistanceTable distances;
+    private final FirstMoveTable firstMoves;
+
+    private MazeSnapshot(String name, byte[] mazeHash, DistanceTable distances, FirstMoveTable firstMoves) {
+        this.name = name;
+        this.mazeHash = mazeHash;
+        this.distances = distances;
+        this.firstMoves = firstMoves;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        preloadAll();
+        for (String mazeName : MazeFile.MAZE_NAMES) {
+            MazeSnapshot snapshot = forMaze(mazeName);
+            System.out.println("Maze " + mazeName + ": " + snapshot.getDistances().getNumberOfNodes() + " nodes from "
+                    + getDirectory().resolve(fileName(mazeName)));
+        }
+        System.out.println("Loaded in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    /**
+     * Start loading, or if need be rebuilding, the snapshot of every shipped maze, all at once in the background
+     */
+    public static void preloadAll() {
+        for (String mazeName : MazeFile.MAZE_NAMES) {
+            preload(mazeName);
+        }
+    }
+
+    /**
+     * Start loading the snapshot of a maze in the background, if it isn't loaded or loading already
+     */
+    public static CompletableFuture<MazeSnapshot> preload(String mazeName) {
+        synchronized (loads) {
+            CompletableFuture<MazeSnapshot> load = loads.get(mazeName);
+            if (load == null) {
+                load = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return load(mazeName);
+                    } catch (IOException e) {
+                        System.err.println("Couldn't load the snapshot of maze " + mazeName + ": " + e.getMessage());
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                loads.put(mazeName, load);
+            }
+            return load;
+        }
+    }
+
+    /**
+     * The snapshot of a maze, waiting for it to be loaded or rebuilt
+     *
+     * @param mazeName The maze name, as in the first field of the maze file
+     * @return The snapshot, shared by every caller
+     * @throws IOException If it could neither be loaded nor rebuilt, a later call tries again
+     */
+    public static MazeSnapshot forMaze(String mazeName) throws IOException {
+        CompletableFuture<MazeSnapshot> load = preload(mazeName);
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            synchronized (loads) {
+                loads.remove(mazeName, load);
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Couldn't load the snapshot of maze " + mazeName, e.getCause());
+        }
+    }
+
+    /**
+     * The snapshot of a maze if it has finished loading, without waiting. Starts the load if need be
+     *
+     * @return The snapshot, or null while it is loading or if it couldn't be loaded
+     */
+    public static MazeSnapshot getIfLoaded(String mazeName) {
+        CompletableFuture<MazeSnapshot> load = preload(mazeName);
+        if (!load.isDone() || load.isCompletedExceptionally()) {
+            return null;
+        }
+        return load.join();
+    }
+
+    public static Path getDirectory() {
+        return DistanceTable.getCacheDirectory();
+    }
+
+    public static String fileName(String mazeName) {
+        return "s" + mazeName + ".bin";
+    }
+
+    /**
+     * Map the snapshot of a maze if it is still good for the maze file, otherwise rebuild it
+     */
+    private static MazeSnapshot load(String mazeName) throws IOException {
+        byte[] mazeBytes = MazeFile.readBytes(mazeName);
+        byte[] mazeHash = hash(mazeBytes);
+        Path file = getDirectory().resolve(fileName(mazeName));
+        if (Files.exists(file)) {
+            try {
+                return open(file, mazeName, mazeHash);
+            } catch (IOException e) {
+                System.err.println("Rebuilding " + file + ": " + e.getMessage());
+            }
+        }
+        // Built from the very bytes that were hashed, so a maze file changing meanwhile can't go unnoticed
+        MazeFile maze = MazeFile.read(mazeBytes, mazeName + ".txt");
+        save(file, maze, mazeHash);
+        return open(file, mazeName, mazeHash);
+    }
+
+    /**
+     * @param mazeHash What the maze file hashes to now
+     * @throws IOException If the snapshot is unreadable, from another version or maze file, or corrupt
+     */
+    private static MazeSnapshot open(Path file, String mazeName, byte[] mazeHash) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a maze snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is version " + buffer.getInt(4) + ", expected " + VERSION);
+        }
+        byte[] storedHash = new byte[HASH_BYTES];
+        buffer.position(8);
+        buffer.get(storedHash);
+        if (!Arrays.equals(storedHash, mazeHash)) {
+            throw new IOException(file + " was made from a different maze file");
+        }
+        long checksum = buffer.getLong();
+        if (checksum(buffer, HEADER_BYTES) != checksum) {
+            throw new IOException(file + " fails its checksum");
+        }
+
+        buffer.position(HEADER_BYTES);
+        DistanceTable distances = new DistanceTable(section(buffer), file);
+        FirstMoveTable firstMoves = FirstMoveTable.read(section(buffer), file);
+        if (firstMoves.getNumberOfNodes() != distances.getNumberOfNodes()) {
+            throw new IOException(file + " has sections for different sized mazes");
+        }
+        return new MazeSnapshot(mazeName, mazeHash, distances, firstMoves);
+    }
+
+    // The next section as a buffer of its own, leaving the position after it
+    private static ByteBuffer section(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        buffer.position(buffer.position() + ALIGNMENT - 4);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Snapshot section of " + length + " bytes runs past the end");
+        }
+        ByteBuffer section = buffer.slice();
+        section.limit(length);
+        buffer.position(buffer.position() + padded(length));
+        return section.slice();
+    }
+
+    private static void save(Path file, MazeFile maze, byte[] mazeHash) throws IOException {
+        short[] distances = DistanceGenerator.generate(maze);
+        FirstMoveTable firstMoves = FirstMoveTable.build(maze, (from, to) -> distances[DistanceTable.index(from, to)]);
+
+        int numberOfNodes = maze.getNumberOfNodes();
+        int[] lengths = {DistanceTableConverter.encodedBytes(numberOfNodes), FirstMoveTable.encodedBytes(numberOfNodes)};
+        long size = HEADER_BYTES;
+        for (int length : lengths) {
+            size += ALIGNMENT + padded(length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size));
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.put(mazeHash);
+        buffer.putLong(0);
+        for (int section = 0; section < lengths.length; section++) {
+            buffer.putInt(lengths[section]);
+            buffer.position(buffer.position() + ALIGNMENT - 4);
+            int start = buffer.position();
+            if (section == 0) {
+                DistanceTableConverter.encode(buffer, numberOfNodes, distances);
+            } else {
+                firstMoves.encode(buffer);
+            }
+            buffer.position(start + padded(lengths[section]));
+        }
+        buffer.putLong(8 + HASH_BYTES, checksum(buffer, HEADER_BYTES));
+        buffer.rewind();
+
+        // Through a temporary file so a reader never sees half of one
+        Path absolute = file.toAbsolutePath();
+        Files.createDirectories(absolute.getParent());
+        Path temporary = absolute.resolveSibling(absolute.getFileName() + "." + System.nanoTime() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int padded(int length) {
+        return (length + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+
+    // CRC32 of everything from the offset to the end, leaving the buffer's position alone
+    private static long checksum(ByteBuffer buffer, int from) {
+        ByteBuffer rest = buffer.duplicate();
+        rest.position(from);
+        rest.limit(rest.capacity());
+        CRC32 crc = new CRC32();
+        crc.update(rest);
+        return crc.getValue();
+    }
+
+    private static byte[] hash(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The SHA-256 of the maze file the snapshot was made from
+     */
+    public byte[] getMazeHash() {
+        return mazeHash.clone();
+    }
+
+    public DistanceTable getDistances() {
+        return distances;
+    }
+
+    public FirstMoveTable getFirstMoves() {
+        return firstMoves;
+    }
+}
@@ -0,0 +1,449 @@
+package maze;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Makes up mazes of any size in the data/mazes text format, for seeing how things scale past the four
+ * that come with the game.
+ * <p>
+ * Junction cells are laid on a grid and joined by a randomised depth first spanning tree, then some of
+ * the remaining walls are knocked through for loops and any dead end is opened up, as a ghost can't
+ * turn back out of one. Every corridor between two cells is the same length, chosen so the maze comes
+ * out near the number of nodes asked for. The number of cells is chosen so that about the junction
+ * density, the fraction of nodes with more than two neighbours, ends up as junctions.
+ * <p>
+ * Nodes are numbered row by row, as in the shipped mazes, with the lair last and unconnected.
+ * Power pills go on the corner cells first, pills on a random fraction of the rest.
+ * <p>
+ * Run with -n nodes, -j junction density, -p pill density, -P power pills, -s seed, -name and -o file.
+ */
+public final class SyntheticMazeGenerator {
+    // About what the shipped mazes have
+    public static final double DEFAULT_JUNCTION_DENSITY = 0.03;
+    public static final double DEFAULT_PILL_DENSITY = 0.17;
+    public static final int DEFAULT_POWER_PILLS = 4;
+    public static final int MINIMUM_NODES = 16;
+
+    // Chance that a wall off the spanning tree is knocked through
+    private static final double LOOP_FRACTION = 0.5;
+    // First guess at how many cells end up as junctions, corrected after one carving
+    private static final double JUNCTION_CELL_GUESS = 0.6;
+    // Directions as in the maze file, y grows down
+    private static final int RIGHT = 1;
+    private static final int DOWN = 2;
+    private static final int[] DX = {0, 1, 0, -1};
+    private static final int[] DY = {-1, 0, 1, 0};
+
+    private final int numberOfNodes;
+    private final long seed;
+    private String name = "s";
+    private double junctionDensity = DEFAULT_JUNCTION_DENSITY;
+    private double pillDensity = DEFAULT_PILL_DENSITY;
+    private int powerPills = DEFAULT_POWER_PILLS;
+
+    /**
+     * @param numberOfNodes About how many nodes the maze should have
+     * @param seed          The same seed and settings always give the same maze
+     */
+    public SyntheticMazeGenerator(int numberOfNodes, long seed) {
+        if (numberOfNodes < MINIMUM_NODES) {
+            throw new IllegalArgumentException("A maze needs at least " + MINIMUM_NODES + " nodes, asked for " + numberOfNodes);
+        }
+        this.numberOfNodes = numberOfNodes;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int nodes = 1293;
+        long seed = 0;
+        String name = "s";
+        Path output = null;
+        double junctionDensity = DEFAULT_JUNCTION_DENSITY;
+        double pillDensity = DEFAULT_PILL_DENSITY;
+        int powerPills = DEFAULT_POWER_PILLS;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-n":
+                    nodes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-j":
+                    junctionDensity = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-p":
+                    pillDensity = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-P":
+                    powerPills = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-s":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "-name":
+                    name = args[i + 1];
+                    break;
+                case "-o":
+                    output = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (output == null) {
+            output = Paths.get(name + ".txt");
+        }
+        SyntheticMazeGenerator generator = new SyntheticMazeGenerator(nodes, seed);
+        generator.setName(name);
+        generator.setJunctionDensity(junctionDensity);
+        generator.setPillDensity(pillDensity);
+        generator.setPowerPills(powerPills);
+        generator.save(output);
+        MazeFile maze = MazeFile.read(output);
+        System.out.println("Generated " + output + ": " + maze.getNumberOfNodes() + " nodes, "
+                + maze.getJunctionNodes().length + " junctions, " + maze.getPillNodes().length + " pills, "
+                + maze.getPowerPillNodes().length + " power pills");
+    }
+
+    public void setName(String name) {
+        if (name.isEmpty() || name.contains("\t")) {
+            throw new IllegalArgumentException("Bad maze name '" + name + "'");
+        }
+        this.name = name;
+    }
+
+    /**
+     * @param junctionDensity Fraction of the nodes that should be junctions, more means shorter corridors
+     */
+    public void setJunctionDensity(double junctionDensity) {
+        if (junctionDensity <= 0 || junctionDensity > 1) {
+            throw new IllegalArgumentException("Junction density must be in (0, 1], was " + junctionDensity);
+        }
+        this.junctionDensity = junctionDensity;
+    }
+
+    /**
+     * @param pillDensity Chance that a node other than the lair, the ghost start and the power pills has a pill
+     */
+    public void setPillDensity(double pillDensity) {
+        if (pillDensity < 0 || pillDensity > 1) {
+            throw new IllegalArgumentException("Pill density must be in [0, 1], was " + pillDensity);
+        }
+        this.pillDensity = pillDensity;
+    }
+
+    public void setPowerPills(int powerPills) {
+        if (powerPills < 0) {
+            throw new IllegalArgumentException("Power pills can't be negative, was " + powerPills);
+        }
+        this.powerPills = powerPills;
+    }
+
+    /**
+     * @return The maze, read back through {@link MazeFile} as any other maze file would be
+     */
+    public MazeFile generate() {
+        StringWriter text = new StringWriter();
+        try {
+            write(text);
+            return MazeFile.read(new BufferedReader(new StringReader(text.toString())), "synthetic maze " + name);
+        } catch (IOException e) {
+            // Nothing here touches a file, so it can only be a maze this got wrong
+            throw new IllegalStateException("Generated an unreadable maze", e);
+        }
+    }
+
+    public void save(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            write(writer);
+        }
+    }
+
+    /**
+     * Write the maze in the text format, the header line then a line per node
+     */
+    public void write(Writer writer) throws IOException {
+        // Carve once to see how many cells become junctions, then again at the size that gives the density
+        int cells = Math.max(4, (int) Math.round(junctionDensity * numberOfNodes / JUNCTION_CELL_GUESS));
+        Grid grid = carve(cells);
+        double junctionCells = Math.max(grid.countJunctions(), 1) / (double) grid.cells();
+        grid = carve(Math.max(4, (int) Math.round(junctionDensity * numberOfNodes / junctionCells)));
+
+        // Corridors of spacing - 1 nodes between each pair of joined cells
+        int openings = grid.countOpenings();
+        int spacing = Math.max(2, (int) Math.round((numberOfNodes - 1.0d - grid.cells()) / openings) + 1);
+        Layout layout = new Layout(grid, spacing);
+        layout.placePills(grid, new Random(seed ^ 0x5DEECE66DL), pillDensity, powerPills);
+
+        writer.write(name + "\t" + layout.pacManStart + "\t" + layout.lair + "\t" + layout.ghostStart + "\t"
+                + layout.count + "\t" + layout.numberOfPills + "\t" + layout.numberOfPowerPills + "\t"
+                + layout.countJunctions() + "\n");
+        StringBuilder line = new StringBuilder();
+        for (int node = 0; node < layout.count; node++) {
+            line.setLength(0);
+            line.append(node).append('\t').append(layout.xs[node]).append('\t').append(layout.ys[node]);
+            for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                line.append('\t').append(layout.neighbours[node * MazeFile.NUM_DIRECTIONS + direction]);
+            }
+            line.append('\t').append(layout.pillIndices[node]).append('\t').append(layout.powerPillIndices[node]).append('\n');
+            writer.write(line.toString());
+        }
+    }
+
+    private Grid carve(int cells) {
+        int columns = Math.max(2, (int) Math.ceil(Math.sqrt(cells)));
+        int rows = Math.max(2, (int) Math.round(cells / (double) columns));
+        Grid grid = new Grid(columns, rows);
+        Random random = new Random(seed);
+
+        // Randomised depth first spanning tree, so every cell can be reached
+        boolean[] visited = new boolean[grid.cells()];
+        int[] stack = new int[grid.cells()];
+        int[] options = new int[MazeFile.NUM_DIRECTIONS];
+        int size = 0;
+        int start = random.nextInt(grid.cells());
+        visited[start] = true;
+        stack[size++] = start;
+        while (size > 0) {
+            int cell = stack[size - 1];
+            int count = 0;
+            for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                int next = grid.next(cell, direction);
+                if (next != -1 && !visited[next]) {
+                    options[count++] = direction;
+                }
+            }
+            if (count == 0) {
+                size--;
+                continue;
+            }
+            int direction = options[random.nextInt(count)];
+            int next = grid.next(cell, direction);
+            grid.open(cell, direction);
+            visited[next] = true;
+            stack[size++] = next;
+        }
+
+        // Loops, each wall checked once from its right or lower side
+        for (int cell = 0; cell < grid.cells(); cell++) {
+            for (int direction : new int[]{RIGHT, DOWN}) {
+                if (grid.next(cell, direction) != -1 && !grid.isOpen(cell, direction) && random.nextDouble() < LOOP_FRACTION) {
+                    grid.open(cell, direction);
+                }
+            }
+        }
+
+        // A ghost can't reverse, so no dead ends. With at least two rows and columns there is always another way out
+        for (int cell = 0; cell < grid.cells(); cell++) {
+            if (grid.degree(cell) == 1) {
+                int count = 0;
+                for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                    if (grid.next(cell, direction) != -1 && !grid.isOpen(cell, direction)) {
+                        options[count++] = direction;
+                    }
+                }
+                grid.open(cell, options[random.nextInt(count)]);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * The cells and which of the walls between them are open
+     */
+    private static final class Grid {
+        private final int columns;
+        private final int rows;
+        // Indexed by cell * NUM_DIRECTIONS + direction, both sides are kept
+        private final boolean[] open;
+
+        private Grid(int columns, int rows) {
+            this.columns = columns;
+            this.rows = rows;
+            this.open = new boolean[columns * rows * MazeFile.NUM_DIRECTIONS];
+        }
+
+        private int cells() {
+            return columns * rows;
+        }
+
+        private int next(int cell, int direction) {
+            int column = cell % columns + DX[direction];
+            int row = cell / columns + DY[direction];
+            return (column < 0 || column >= columns || row < 0 || row >= rows) ? -1 : row * columns + column;
+        }
+
+        private void open(int cell, int direction) {
+            open[cell * MazeFile.NUM_DIRECTIONS + direction] = true;
+            open[next(cell, direction) * MazeFile.NUM_DIRECTIONS + (direction + 2) % MazeFile.NUM_DIRECTIONS] = true;
+        }
+
+        private boolean isOpen(int cell, int direction) {
+            return open[cell * MazeFile.NUM_DIRECTIONS + direction];
+        }
+
+        private int degree(int cell) {
+            int degree = 0;
+            for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                if (isOpen(cell, direction)) degree++;
+            }
+            return degree;
+        }
+
+        private int countJunctions() {
+            int junctions = 0;
+            for (int cell = 0; cell < cells(); cell++) {
+                if (degree(cell) > 2) junctions++;
+            }
+            return junctions;
+        }
+
+        private int countOpenings() {
+            int openings = 0;
+            for (int cell = 0; cell < cells(); cell++) {
+                if (isOpen(cell, RIGHT)) openings++;
+                if (isOpen(cell, DOWN)) openings++;
+            }
+            return openings;
+        }
+    }
+
+    /**
+     * The grid stretched out into nodes, cell (column, row) sitting at (column * spacing, row * spacing)
+     */
+    private static final class Layout {
+        private final int spacing;
+        private final int width;
+        // Node at each point, -1 for wall
+        private final int[] points;
+        private final int count;
+        private final int lair;
+        private final int[] xs;
+        private final int[] ys;
+        private final int[] neighbours;
+        private final int[] pillIndices;
+        private final int[] powerPillIndices;
+        private final int pacManStart;
+        private final int ghostStart;
+        private int numberOfPills;
+        private int numberOfPowerPills;
+
+        private Layout(Grid grid, int spacing) {
+            this.spacing = spacing;
+            this.width = (grid.columns - 1) * spacing + 1;
+            int height = (grid.rows - 1) * spacing + 1;
+            points = new int[width * height];
+            Arrays.fill(points, -1);
+            for (int cell = 0; cell < grid.cells(); cell++) {
+                int x = (cell % grid.columns) * spacing;
+                int y = (cell / grid.columns) * spacing;
+                points[y * width + x] = 0;
+                for (int direction : new int[]{RIGHT, DOWN}) {
+                    if (grid.isOpen(cell, direction)) {
+                        for (int step = 1; step < spacing; step++) {
+                            points[(y + DY[direction] * step) * width + x + DX[direction] * step] = 0;
+                        }
+                    }
+                }
+            }
+
+            // Row by row numbering
+            int nodes = 0;
+            for (int point = 0; point < points.length; point++) {
+                if (points[point] != -1) {
+                    points[point] = nodes++;
+                }
+            }
+            count = nodes + 1;
+            lair = nodes;
+            xs = new int[count];
+            ys = new int[count];
+            neighbours = new int[count * MazeFile.NUM_DIRECTIONS];
+            Arrays.fill(neighbours, -1);
+            for (int point = 0; point < points.length; point++) {
+                int node = points[point];
+                if (node == -1) continue;
+                int x = point % width;
+                int y = point / width;
+                xs[node] = x;
+                ys[node] = y;
+                for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                    int nx = x + DX[direction];
+                    int ny = y + DY[direction];
+                    if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
+                        neighbours[node * MazeFile.NUM_DIRECTIONS + direction] = points[ny * width + nx];
+                    }
+                }
+            }
+            xs[lair] = width / 2;
+            ys[lair] = height / 2;
+
+            ghostStart = cellNode(grid, grid.columns / 2, grid.rows / 2);
+            pacManStart = cellNode(grid, grid.columns / 2, (grid.rows * 3) / 4);
+            pillIndices = new int[count];
+            powerPillIndices = new int[count];
+        }
+
+        private int cellNode(Grid grid, int column, int row) {
+            return points[row * spacing * width + column * spacing];
+        }
+
+        private void placePills(Grid grid, Random random, double pillDensity, int powerPills) {
+            Arrays.fill(pillIndices, -1);
+            Arrays.fill(powerPillIndices, -1);
+
+            // Corners first, then any other cell
+            List<Integer> corners = new ArrayList<>();
+            List<Integer> others = new ArrayList<>();
+            for (int row = 0; row < grid.rows; row++) {
+                for (int column = 0; column < grid.columns; column++) {
+                    int node = cellNode(grid, column, row);
+                    if (node == ghostStart || node == pacManStart) continue;
+                    boolean corner = (row == 0 || row == grid.rows - 1) && (column == 0 || column == grid.columns - 1);
+                    (corner ? corners : others).add(node);
+                }
+            }
+            Collections.shuffle(others, random);
+            corners.addAll(others);
+            if (powerPills > corners.size()) {
+                throw new IllegalArgumentException("Only room for " + corners.size() + " power pills, asked for " + powerPills);
+            }
+            boolean[] taken = new boolean[count];
+            for (int k = 0; k < powerPills; k++) {
+                taken[corners.get(k)] = true;
+            }
+            // Numbered in node order as the shipped mazes are
+            for (int node = 0; node < lair; node++) {
+                if (taken[node]) {
+                    powerPillIndices[node] = numberOfPowerPills++;
+                } else if (node != ghostStart && random.nextDouble() < pillDensity) {
+                    pillIndices[node] = numberOfPills++;
+                }
+            }
+        }
+
+        private int countJunctions() {
+            int junctions = 0;
+            for (int node = 0; node < count; node++) {
+                int degree = 0;
+                for (int direction = 0; direction < MazeFile.NUM_DIRECTIONS; direction++) {
+                    if (neighbours[node * MazeFile.NUM_DIRECTIONS + direction] != -1) degree++;
+                }
+                if (degree > 2) junctions++;
+            }
+            return junctions;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package prediction;
+
+/**
+ * How the danger at each node along a path is combined into one value for the path
+ */
+public enum Aggregation {
+    /**
+     * Sum of the danger at each step, the expected number of ghost encounters
+     */
+    SUM {
+        @Override
+        public double combine(double total, double value) {
+            return total + value;
+        }
+    },
+    /**
+     * The most dangerous single step
+     */
+    MAX {
+        @Override
+        public double combine(double total, double value) {
+            return Math.max(total, value);
+        }
+    };
+
+    public abstract double combine(double total, double value);
+}
@@ -2,84 +2,362 @@ package prediction;
 
 import pacman.game.Constants.GHOST;
 import pacman.game.Constants.MOVE;
+import maze.CompiledMaze;
 import pacman.game.internal.Maze;
+import prediction.fast.BeliefMetrics;
 import prediction.fast.GhostPredictionsFast;
+import prediction.fast.LearnedTransitions;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
  * Ghost Predictor
  *
  * Predicts ghosts locations in the future.
+ * The predictions for each depth are kept in a fixed ring of preallocated buffers that are
+ * reused across ticks, so looking ahead doesn't allocate once the ring exists.
+ * <p>
+ * In rolling mode the depth-d prediction at one tick is reused as the depth-(d - 1) prediction at
+ * the next. Only the ghosts an observation actually changed are thrown away and recomputed, lazily,
+ * so when nothing new is seen each tick only costs the new deepest layer.
+ * <p>
+ * In compact mode the layers keep their probabilities as floats, which matters with a deep ring.
  * Created by Piers on 14/07/2016.
  */
 public class GhostPredictor {
+    public static final int DEFAULT_MAX_DEPTH = 64;
 
-    private List<GhostPredictionsFast> ghostPredictions = new ArrayList<>();
+    private final int maxDepth;
+    private final boolean rolling;
+    private final boolean compact;
+    private Maze maze;
+    // Depth d lives in ring[(head + d) % ring.length]
+    private GhostPredictionsFast[] ring;
+    private int head;
+    // The first filled[ghost] depths are up to date for that ghost
+    private final int[] filled = new int[GHOST.values().length];
+    private final boolean[] invalidated = new boolean[GHOST.values().length];
     private boolean observationMade = false;
+    private BeliefMetrics metrics;
+    private LearnedTransitions learned;
+
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 16;
+    private boolean parallel = false;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    public GhostPredictor() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param maxDepth The deepest lookahead that will be asked for
+     */
+    public GhostPredictor(int maxDepth) {
+        this(maxDepth, false);
+    }
+
+    /**
+     * @param maxDepth The deepest lookahead that will be asked for
+     * @param rolling  Keep the layers across ticks and only recompute the ghosts that were observed
+     */
+    public GhostPredictor(int maxDepth, boolean rolling) {
+        this(maxDepth, rolling, false);
+    }
+
+    /**
+     * @param maxDepth The deepest lookahead that will be asked for
+     * @param rolling  Keep the layers across ticks and only recompute the ghosts that were observed
+     * @param compact  Keep each layer's probabilities as floats, halving what the ring holds them in
+     */
+    public GhostPredictor(int maxDepth, boolean rolling, boolean compact) {
+        this.maxDepth = maxDepth;
+        this.rolling = rolling;
+        this.compact = compact;
+    }
 
     /**
      * Clears the current predictions and starts afresh including a possible new maze
      * or new life on the same maze.
      */
     public void clear(Maze maze){
-        ghostPredictions.clear();
-        ghostPredictions.add(new GhostPredictionsFast(maze));
+        if (ring == null || this.maze != maze) {
+            this.maze = maze;
+            ring = new GhostPredictionsFast[maxDepth + 1];
+            CompiledMaze compiledMaze = CompiledMaze.forMaze(maze);
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = new GhostPredictionsFast(compiledMaze, true, compact);
+                ring[i].setMetrics(metrics);
+                ring[i].setLearnedTransitions(learned);
+            }
+        }
+        head = 0;
+        Arrays.fill(filled, 1);
+        Arrays.fill(invalidated, false);
+        observationMade = false;
+        ring[head].reset();
     }
 
     public void addObservation(GHOST ghost, int ghostIndex, MOVE lastMoveMade){
-        if(ghostPredictions.isEmpty()) return;
-        ghostPredictions.get(0).observe(ghost, ghostIndex, lastMoveMade);
+        if(ring == null) return;
+        layer(0).observe(ghost, ghostIndex, lastMoveMade);
+        invalidated[ghost.ordinal()] = true;
         observationMade = true;
     }
 
     public void observeNotPresent(GHOST ghost, int ghostIndex){
-        if(ghostPredictions.isEmpty()) return;
-        ghostPredictions.get(0).observeNotPresent(ghost, ghostIndex);
+        if(ring == null) return;
+        // Ruling out somewhere the ghost couldn't be changes nothing, but it still counts as out of sight
+        boolean changes = layer(0).getProbability(ghost, ghostIndex) != 0;
+        layer(0).observeNotPresent(ghost, ghostIndex);
+        if (rolling && !changes) return;
+        invalidated[ghost.ordinal()] = true;
         observationMade = true;
     }
 
+    /**
+     * Rules the ghost out of all the nodes that can be seen at once
+     */
+    public void observeNotPresent(GHOST ghost, BitSet visibleNodes){
+        if(ring == null) return;
+        if (layer(0).observeNotPresent(ghost, visibleNodes)) {
+            invalidated[ghost.ordinal()] = true;
+            observationMade = true;
+        }
+    }
+
     public void observationsFinished(){
         if(observationMade){
-            // Save the first one - it contains the observations that are new
-            GhostPredictionsFast first = ghostPredictions.get(0);
-            ghostPredictions.clear();
-            ghostPredictions.add(first);
+            // Keep the first one - it contains the observations that are new
+            for (int ghost = 0; ghost < filled.length; ghost++) {
+                if (!rolling || invalidated[ghost]) {
+                    filled[ghost] = 1;
+                }
+            }
         }
+        Arrays.fill(invalidated, false);
         observationMade = false;
     }
 
     public List<GhostLocation> getCurrentLocations(GHOST ghost){
-        if(ghostPredictions.isEmpty()) return new ArrayList<>();
-        return ghostPredictions.get(0).getGhostLocations(ghost);
+        if(ring == null) return new ArrayList<>();
+        return layer(0).getGhostLocations(ghost);
+    }
+
+    public void forEachCurrentLocation(GHOST ghost, LocationConsumer consumer){
+        if(ring == null) return;
+        layer(0).forEachLocation(ghost, consumer);
     }
 
     /**
-     * Discard the current first prediction
+     * Discard the current first prediction, the next depth becomes the current one.
+     * If nothing deeper has been predicted for a ghost it is moved on a step first
      */
     public void discardCurrent(){
-        if(ghostPredictions.isEmpty()) return;
-        ghostPredictions.remove(0);
+        if(ring == null) return;
+        for (GHOST ghost : GHOST.values()) {
+            fill(ghost, 1);
+            filled[ghost.ordinal()]--;
+        }
+        head = (head + 1) % ring.length;
     }
 
     /**
-     * Just in Time population of the list
-     * @param depth The depth we are interested in
+     * Just in Time population of the ring
+     * @param depth The depth we are interested in, at most the maximum depth
      * @param index The index in the map we are interested in
      * @return The value at that location
      */
     public double getPredictions(int depth, int index){
-        if(ghostPredictions.isEmpty()) return 0.0d;
-        if(ghostPredictions.size() <= depth){
-            for(int i = ghostPredictions.size(); i <= depth; i++){
-                GhostPredictionsFast temp = ghostPredictions.get(i - 1).copy();
-                temp.update();
-                ghostPredictions.add(temp);
+        if(ring == null) return 0.0d;
+        if (depth > maxDepth) {
+            throw new IllegalArgumentException("depth " + depth + " is beyond the maximum depth of " + maxDepth);
+        }
+        fill(depth);
+
+        return layer(depth).calculate(index);
+    }
+
+    /**
+     * Danger along a path, where the node at path[i] is reached at depth startDepth + i.
+     * The layers are filled once up front rather than once per node
+     *
+     * @param path       The node indices making up the path
+     * @param startDepth The depth the first node of the path is reached at
+     * @param agg        How the danger at each step is combined
+     * @return The combined danger, 0 for an empty path
+     */
+    public double pathDanger(int[] path, int startDepth, Aggregation agg){
+        if(ring == null || path.length == 0) return 0.0d;
+        int deepest = startDepth + path.length - 1;
+        if (deepest > maxDepth) {
+            throw new IllegalArgumentException("depth " + deepest + " is beyond the maximum depth of " + maxDepth);
+        }
+        fill(deepest);
+
+        double total = 0.0d;
+        for (int i = 0; i < path.length; i++) {
+            total = agg.combine(total, danger(layer(startDepth + i).getDangerMap(), path[i]));
+        }
+        return total;
+    }
+
+    /**
+     * Danger along many candidate paths at once, see {@link #pathDanger(int[], int, Aggregation)}.
+     * Works through the depths in order, reading each layer once for all the paths
+     *
+     * @param paths      The candidate paths
+     * @param startDepth The depth the first node of every path is reached at
+     * @param agg        How the danger at each step is combined
+     * @param results    Filled with the combined danger of each path, at least as long as paths
+     */
+    public void pathDanger(int[][] paths, int startDepth, Aggregation agg, double[] results){
+        Arrays.fill(results, 0, paths.length, 0.0d);
+        if(ring == null) return;
+        int longest = 0;
+        for (int[] path : paths) {
+            longest = Math.max(longest, path.length);
+        }
+        if (longest == 0) return;
+        int deepest = startDepth + longest - 1;
+        if (deepest > maxDepth) {
+            throw new IllegalArgumentException("depth " + deepest + " is beyond the maximum depth of " + maxDepth);
+        }
+        fill(deepest);
+
+        for (int i = 0; i < longest; i++) {
+            double[] dangerMap = layer(startDepth + i).getDangerMap();
+            for (int p = 0; p < paths.length; p++) {
+                if (i < paths[p].length) {
+                    results[p] = agg.combine(results[p], danger(dangerMap, paths[p][i]));
+                }
             }
         }
+    }
+
+    /**
+     * Reports the updates, copies and observations of every layer to the metrics, null to stop
+     */
+    public void setMetrics(BeliefMetrics metrics) {
+        this.metrics = metrics;
+        if (ring != null) {
+            for (GhostPredictionsFast layer : ring) {
+                layer.setMetrics(metrics);
+            }
+        }
+    }
+
+    /**
+     * Propagate every layer with learned transition weights, null for the even split
+     */
+    public void setLearnedTransitions(LearnedTransitions learned) {
+        this.learned = learned;
+        if (ring != null) {
+            for (GhostPredictionsFast layer : ring) {
+                layer.setLearnedTransitions(learned);
+            }
+        }
+    }
+
+    /**
+     * Where Pac-Man is taken to be by the learned transitions, at every depth.
+     * Layers that are already filled are kept, in rolling mode they were built with where Pac-Man was then
+     *
+     * @param pacManIndex The node index, -1 if unknown
+     */
+    public void setPacManLocation(int pacManIndex) {
+        if (ring != null) {
+            for (GhostPredictionsFast layer : ring) {
+                layer.setPacManLocation(pacManIndex);
+            }
+        }
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public boolean isRolling() {
+        return rolling;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Lets the lookahead layers be built on the shared fork join pool, one pipeline per ghost,
+     * whenever at least the threshold number of ghost layers are missing. Less stays on the calling thread
+     *
+     * @param parallel Whether to build in parallel at all
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    // Bring every ghost up to date down to the given depth
+    private void fill(int depth) {
+        if (parallel) {
+            int layers = 0;
+            int ghostsBehind = 0;
+            for (int ghost = 0; ghost < filled.length; ghost++) {
+                if (filled[ghost] <= depth) {
+                    layers += depth - filled[ghost] + 1;
+                    ghostsBehind++;
+                }
+            }
+            if (ghostsBehind > 1 && layers >= parallelThreshold) {
+                // A ghost's layers only depend on its own previous layer, so each ghost is its own pipeline
+                ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        List<RecursiveAction> pipelines = new ArrayList<>();
+                        for (GHOST ghost : GHOST.values()) {
+                            if (filled[ghost.ordinal()] <= depth) {
+                                pipelines.add(new RecursiveAction() {
+                                    @Override
+                                    protected void compute() {
+                                        fill(ghost, depth);
+                                    }
+                                });
+                            }
+                        }
+                        invokeAll(pipelines);
+                    }
+                });
+                return;
+            }
+        }
+        for (GHOST ghost : GHOST.values()) {
+            fill(ghost, depth);
+        }
+    }
+
+    // Bring a ghost's belief up to date down to the given depth
+    private void fill(GHOST ghost, int depth) {
+        for (int i = filled[ghost.ordinal()]; i <= depth; i++) {
+            GhostPredictionsFast next = layer(i);
+            layer(i - 1).copyInto(next, ghost);
+            next.update(ghost);
+            filled[ghost.ordinal()]++;
+        }
+    }
+
+    // Same as calculate, the lair node isn't in the map
+    private static double danger(double[] dangerMap, int index) {
+        return (index < dangerMap.length) ? dangerMap[index] : 0.0d;
+    }
 
-        return ghostPredictions.get(depth).calculate(index);
+    private GhostPredictionsFast layer(int depth) {
+        return ring[(head + depth) % ring.length];
     }
 }
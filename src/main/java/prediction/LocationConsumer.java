@@ -0,0 +1,15 @@
+package prediction;
+
+/**
+ * Receives the cells of a ghost belief one at a time, so they can be read without building
+ * a list of {@link GhostLocation}s.
+ */
+@FunctionalInterface
+public interface LocationConsumer {
+    /**
+     * @param index       The node index
+     * @param moveOrdinal Ordinal of the last move made to get there
+     * @param probability The chance of the ghost being there
+     */
+    void accept(int index, int moveOrdinal, double probability);
+}
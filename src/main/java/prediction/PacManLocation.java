@@ -1,5 +1,6 @@
 package prediction;
 
+import maze.CompiledMaze;
 import pacman.game.Constants;
 import pacman.game.internal.Maze;
 
@@ -10,35 +11,43 @@ public class PacManLocation {
     private int index;
     private Constants.MOVE lastMoveMade;
     private Maze maze;
+    private CompiledMaze compiledMaze;
 
     public PacManLocation(int index, Constants.MOVE lastMoveMade, Maze maze) {
+        this(index, lastMoveMade, maze, CompiledMaze.forMaze(maze));
+    }
+
+    private PacManLocation(int index, Constants.MOVE lastMoveMade, Maze maze, CompiledMaze compiledMaze) {
         this.index = index;
         this.lastMoveMade = lastMoveMade;
         this.maze = maze;
+        this.compiledMaze = compiledMaze;
     }
 
     // Returns all possible moves except the opposite of the last move made.
+    // Shared with the compiled maze, don't modify
     public Constants.MOVE[] possibleMoves() {
-        return maze.graph[index].allPossibleMoves.get(lastMoveMade);
+        return compiledMaze.getPossibleMoves(index, lastMoveMade);
     }
 
     public Constants.MOVE[] allPossibleMovesIncludingBackwards() {
-        return maze.graph[index].neighbourhood.keySet().toArray(new Constants.MOVE[maze.graph[index].neighbourhood.keySet().size()]);
+        return compiledMaze.getPossibleMoves(index);
     }
 
     public void update(Constants.MOVE move) {
-        if(isPossible(move)) {
-            index = maze.graph[index].neighbourhood.get(move);
+        int neighbour = compiledMaze.getNeighbour(index, move);
+        if (neighbour != -1) {
+            index = neighbour;
             lastMoveMade = move;
         }
     }
 
     public boolean isPossible(Constants.MOVE move) {
-        return maze.graph[index].neighbourhood.containsKey(move);
+        return compiledMaze.isPossible(index, move);
     }
 
     public PacManLocation copy() {
-        return new PacManLocation(this.index, this.lastMoveMade, this.maze);
+        return new PacManLocation(this.index, this.lastMoveMade, this.maze, this.compiledMaze);
     }
 
     public int getIndex() {
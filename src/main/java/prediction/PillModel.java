@@ -1,34 +1,281 @@
 package prediction;
 
+import maze.CompiledMaze;
+import pacman.game.internal.Maze;
+
+import java.util.Arrays;
 import java.util.BitSet;
 
 /**
  * Created by Piers on 27/06/2016.
+ * <p>
+ * Built from a maze it also keeps, as pills come and go:
+ * the pill indices partitioned into those remaining and those eaten,
+ * how many pills remain in each corridor,
+ * and for every node the distance to and location of the nearest remaining pill.
+ * The distance field is repaired locally, only the nodes that were nearest to a removed pill are revisited.
  */
 public class PillModel {
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
     private BitSet pills;
     private int pillsEaten;
     private double totalPills;
 
+    // Only when built from a maze, the layout is shared between copies
+    private int[] pillNodes;
+    private int[] neighbourStart;
+    private int[] neighbours;
+    // Runs of non junction nodes share a corridor, each junction is a corridor of its own
+    private int[] corridors;
+    private int numberOfCorridors;
+
+    private int[] corridorRemaining;
+    // The first remaining entries are the pills still there, position is the inverse of order
+    private int[] order;
+    private int[] position;
+    private int remaining;
+    private int[] distance;
+    private int[] nearest;
+
+    // Work space for repairs, made when first needed
+    private int[] queue;
+    private boolean[] queued;
+
     public PillModel(int indices) {
         this.totalPills = indices;
         this.pills = new BitSet(indices);
     }
 
+    /**
+     * A model of the maze with every pill still there
+     *
+     * @param maze The maze
+     */
+    public PillModel(Maze maze) {
+        this(CompiledMaze.forMaze(maze));
+    }
+
+    /**
+     * @param maze The maze, which needn't be one the engine knows
+     */
+    public PillModel(CompiledMaze maze) {
+        this(maze.getPillNodes().length);
+        pillNodes = maze.getPillNodes();
+        buildLayout(maze);
+
+        int numberOfPills = pillNodes.length;
+        pills.set(0, numberOfPills);
+        order = new int[numberOfPills];
+        position = new int[numberOfPills];
+        for (int pill = 0; pill < numberOfPills; pill++) {
+            order[pill] = pill;
+            position[pill] = pill;
+        }
+        remaining = numberOfPills;
+        corridorRemaining = new int[numberOfCorridors];
+        for (int pillNode : pillNodes) {
+            corridorRemaining[corridors[pillNode]]++;
+        }
+
+        distance = new int[maze.getNumberOfNodes()];
+        nearest = new int[maze.getNumberOfNodes()];
+        Arrays.fill(distance, UNREACHABLE);
+        Arrays.fill(nearest, -1);
+        // Multi-source breadth first search out from every pill
+        ensureWorkSpace();
+        int head = 0;
+        int tail = 0;
+        for (int pillNode : pillNodes) {
+            distance[pillNode] = 0;
+            nearest[pillNode] = pillNode;
+            queue[tail++] = pillNode;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (int k = neighbourStart[node]; k < neighbourStart[node + 1]; k++) {
+                int neighbour = neighbours[k];
+                if (distance[neighbour] == UNREACHABLE) {
+                    distance[neighbour] = distance[node] + 1;
+                    nearest[neighbour] = nearest[node];
+                    queue[tail++] = neighbour;
+                }
+            }
+        }
+    }
+
+    private void buildLayout(CompiledMaze maze) {
+        int numberOfNodes = maze.getNumberOfNodes();
+        neighbourStart = new int[numberOfNodes + 1];
+        for (int node = 0; node < numberOfNodes; node++) {
+            neighbourStart[node + 1] = neighbourStart[node] + maze.getNumberOfNeighbours(node);
+        }
+        neighbours = new int[neighbourStart[numberOfNodes]];
+        for (int node = 0; node < numberOfNodes; node++) {
+            int k = neighbourStart[node];
+            for (int direction = 0; direction < CompiledMaze.NUM_DIRECTIONS; direction++) {
+                int neighbour = maze.getNeighbour(node, direction);
+                if (neighbour != -1) {
+                    neighbours[k++] = neighbour;
+                }
+            }
+        }
+
+        corridors = new int[numberOfNodes];
+        Arrays.fill(corridors, -1);
+        int[] stack = new int[numberOfNodes];
+        for (int node = 0; node < numberOfNodes; node++) {
+            if (corridors[node] != -1) continue;
+            int corridor = numberOfCorridors++;
+            corridors[node] = corridor;
+            if (maze.isJunction(node)) continue;
+            int size = 0;
+            stack[size++] = node;
+            while (size > 0) {
+                int current = stack[--size];
+                for (int k = neighbourStart[current]; k < neighbourStart[current + 1]; k++) {
+                    int neighbour = neighbours[k];
+                    if (corridors[neighbour] == -1 && !maze.isJunction(neighbour)) {
+                        corridors[neighbour] = corridor;
+                        stack[size++] = neighbour;
+                    }
+                }
+            }
+        }
+    }
+
     // Pacman visited this index
     public void update(int index) {
         if (pills.get(index)) {
             pillsEaten++;
             pills.set(index, false);
 //            pills.flip(index);
+            if (order != null) {
+                remove(index);
+            }
         }
     }
 
     // There is a pill here!
     public void observe(int index, boolean pillThere) {
+        if (order != null && pills.get(index) != pillThere) {
+            pills.set(index, pillThere);
+            if (pillThere) {
+                add(index);
+            } else {
+                remove(index);
+            }
+            return;
+        }
         pills.set(index, pillThere);
     }
 
+    private void remove(int pill) {
+        swap(position[pill], --remaining);
+        int pillNode = pillNodes[pill];
+        corridorRemaining[corridors[pillNode]]--;
+
+        // Forget every node that was nearest to this pill, they are connected through it
+        ensureWorkSpace();
+        int regionSize = 0;
+        queue[regionSize++] = pillNode;
+        distance[pillNode] = UNREACHABLE;
+        nearest[pillNode] = -1;
+        for (int k = 0; k < regionSize; k++) {
+            int node = queue[k];
+            for (int n = neighbourStart[node]; n < neighbourStart[node + 1]; n++) {
+                int neighbour = neighbours[n];
+                if (nearest[neighbour] == pillNode) {
+                    distance[neighbour] = UNREACHABLE;
+                    nearest[neighbour] = -1;
+                    queue[regionSize++] = neighbour;
+                }
+            }
+        }
+
+        // Seed the region from its border then relax until nothing improves
+        for (int k = 0; k < regionSize; k++) {
+            int node = queue[k];
+            for (int n = neighbourStart[node]; n < neighbourStart[node + 1]; n++) {
+                int neighbour = neighbours[n];
+                if (nearest[neighbour] != -1 && distance[neighbour] + 1 < distance[node]) {
+                    distance[node] = distance[neighbour] + 1;
+                    nearest[node] = nearest[neighbour];
+                }
+            }
+        }
+        // The region list is no longer needed, reuse the queue for the relaxation
+        int length = queue.length;
+        int head = 0;
+        int tail = 0;
+        for (int k = 0; k < regionSize; k++) {
+            int node = queue[k];
+            if (nearest[node] != -1 && !queued[node]) {
+                queued[node] = true;
+                queue[tail++] = node;
+            }
+        }
+        while (head != tail) {
+            int node = queue[head];
+            head = (head + 1) % length;
+            queued[node] = false;
+            for (int n = neighbourStart[node]; n < neighbourStart[node + 1]; n++) {
+                int neighbour = neighbours[n];
+                if (distance[node] + 1 < distance[neighbour]) {
+                    distance[neighbour] = distance[node] + 1;
+                    nearest[neighbour] = nearest[node];
+                    if (!queued[neighbour]) {
+                        queued[neighbour] = true;
+                        queue[tail] = neighbour;
+                        tail = (tail + 1) % length;
+                    }
+                }
+            }
+        }
+    }
+
+    private void add(int pill) {
+        swap(position[pill], remaining++);
+        int pillNode = pillNodes[pill];
+        corridorRemaining[corridors[pillNode]]++;
+
+        // Breadth first out from the new pill, stopping wherever something was already as close
+        ensureWorkSpace();
+        distance[pillNode] = 0;
+        nearest[pillNode] = pillNode;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = pillNode;
+        while (head < tail) {
+            int node = queue[head++];
+            for (int n = neighbourStart[node]; n < neighbourStart[node + 1]; n++) {
+                int neighbour = neighbours[n];
+                if (distance[node] + 1 < distance[neighbour]) {
+                    distance[neighbour] = distance[node] + 1;
+                    nearest[neighbour] = pillNode;
+                    queue[tail++] = neighbour;
+                }
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int first = order[i];
+        int second = order[j];
+        order[i] = second;
+        order[j] = first;
+        position[second] = i;
+        position[first] = j;
+    }
+
+    private void ensureWorkSpace() {
+        if (queue == null) {
+            // One more than the nodes so a full circular queue can be told from an empty one
+            queue = new int[distance.length + 1];
+            queued = new boolean[distance.length];
+        }
+    }
+
     public int getPillsEaten() {
         return pillsEaten;
     }
@@ -42,10 +289,75 @@ public class PillModel {
         other.pills = (BitSet) this.pills.clone();
         other.totalPills = this.totalPills;
         other.pillsEaten = pillsEaten;
+        if (order != null) {
+            other.pillNodes = pillNodes;
+            other.neighbourStart = neighbourStart;
+            other.neighbours = neighbours;
+            other.corridors = corridors;
+            other.numberOfCorridors = numberOfCorridors;
+            other.corridorRemaining = corridorRemaining.clone();
+            other.order = order.clone();
+            other.position = position.clone();
+            other.remaining = remaining;
+            other.distance = distance.clone();
+            other.nearest = nearest.clone();
+        }
         return other;
     }
 
     public BitSet getPills() {
         return pills;
     }
+
+    /*
+     * The rest need the model to have been built from a maze
+     */
+
+    public int getNumberOfPills() {
+        return order.length;
+    }
+
+    public int getRemainingCount() {
+        return remaining;
+    }
+
+    /**
+     * The pills partitioned, the first {@link #getRemainingCount()} are still there and the rest eaten
+     *
+     * @param k Position in the partition
+     * @return The pill index
+     */
+    public int getPill(int k) {
+        return order[k];
+    }
+
+    public int getPillNode(int pillIndex) {
+        return pillNodes[pillIndex];
+    }
+
+    /**
+     * @return Steps from the node to the nearest remaining pill, -1 if there are none to reach
+     */
+    public int getNearestPillDistance(int node) {
+        return (nearest[node] == -1) ? -1 : distance[node];
+    }
+
+    /**
+     * @return The node index of the nearest remaining pill, -1 if there are none to reach
+     */
+    public int getNearestPill(int node) {
+        return nearest[node];
+    }
+
+    public int getNumberOfCorridors() {
+        return numberOfCorridors;
+    }
+
+    public int getCorridor(int node) {
+        return corridors[node];
+    }
+
+    public int getRemainingInCorridor(int corridor) {
+        return corridorRemaining[corridor];
+    }
 }
@@ -0,0 +1,154 @@
+package prediction.fast;
+
+import java.util.Random;
+
+/**
+ * Walker / Vose alias table for drawing from a discrete distribution in constant time.
+ * <p>
+ * Built from a probability array and the indices in it that may hold mass; the weights don't need to
+ * sum to one. Sampling returns one of those indices, or -1 if there was no mass at all.
+ * The arrays are reused between builds so rebuilding after each belief update doesn't allocate.
+ */
+public final class AliasTable {
+    private double[] probability;
+    private int[] alias;
+    private int[] outcomes;
+    private int size;
+
+    // Work lists for the build
+    private int[] small;
+    private int[] large;
+
+    public AliasTable(int capacity) {
+        probability = new double[capacity];
+        alias = new int[capacity];
+        outcomes = new int[capacity];
+        small = new int[capacity];
+        large = new int[capacity];
+    }
+
+    /**
+     * Build over the cells weights[indices[k]] for k in [from, to)
+     */
+    public void build(double[] weights, int[] indices, int from, int to) {
+        ensureCapacity(to - from);
+        size = 0;
+        double total = 0.0d;
+        for (int k = from; k < to; k++) {
+            double weight = weights[indices[k]];
+            if (weight > 0) {
+                outcomes[size] = indices[k];
+                probability[size++] = weight;
+                total += weight;
+            }
+        }
+        prepare(total);
+    }
+
+    /**
+     * Build over the cells weights[i] for i in [from, to)
+     */
+    public void build(double[] weights, int from, int to) {
+        ensureCapacity(to - from);
+        size = 0;
+        double total = 0.0d;
+        for (int i = from; i < to; i++) {
+            if (weights[i] > 0) {
+                outcomes[size] = i;
+                probability[size++] = weights[i];
+                total += weights[i];
+            }
+        }
+        prepare(total);
+    }
+
+    /**
+     * Build over the cells weights[indices[k]] for k in [from, to)
+     */
+    public void build(float[] weights, int[] indices, int from, int to) {
+        ensureCapacity(to - from);
+        size = 0;
+        double total = 0.0d;
+        for (int k = from; k < to; k++) {
+            double weight = weights[indices[k]];
+            if (weight > 0) {
+                outcomes[size] = indices[k];
+                probability[size++] = weight;
+                total += weight;
+            }
+        }
+        prepare(total);
+    }
+
+    /**
+     * Build over the cells weights[i] for i in [from, to)
+     */
+    public void build(float[] weights, int from, int to) {
+        ensureCapacity(to - from);
+        size = 0;
+        double total = 0.0d;
+        for (int i = from; i < to; i++) {
+            if (weights[i] > 0) {
+                outcomes[size] = i;
+                probability[size++] = weights[i];
+                total += weights[i];
+            }
+        }
+        prepare(total);
+    }
+
+    private void prepare(double total) {
+        int numberSmall = 0;
+        int numberLarge = 0;
+        for (int i = 0; i < size; i++) {
+            probability[i] = probability[i] * size / total;
+            if (probability[i] < 1.0d) {
+                small[numberSmall++] = i;
+            } else {
+                large[numberLarge++] = i;
+            }
+        }
+
+        while (numberSmall > 0 && numberLarge > 0) {
+            int less = small[--numberSmall];
+            int more = large[--numberLarge];
+            alias[less] = more;
+            probability[more] = (probability[more] + probability[less]) - 1.0d;
+            if (probability[more] < 1.0d) {
+                small[numberSmall++] = more;
+            } else {
+                large[numberLarge++] = more;
+            }
+        }
+
+        // Whatever is left over is only off one through rounding
+        while (numberLarge > 0) {
+            probability[large[--numberLarge]] = 1.0d;
+        }
+        while (numberSmall > 0) {
+            probability[small[--numberSmall]] = 1.0d;
+        }
+    }
+
+    public int sample(Random random) {
+        if (size == 0) {
+            return -1;
+        }
+        int column = random.nextInt(size);
+        return (random.nextDouble() < probability[column]) ? outcomes[column] : outcomes[alias[column]];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (probability.length < capacity) {
+            probability = new double[capacity];
+            alias = new int[capacity];
+            outcomes = new int[capacity];
+            small = new int[capacity];
+            large = new int[capacity];
+        }
+    }
+}
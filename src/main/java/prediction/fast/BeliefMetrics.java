@@ -0,0 +1,235 @@
+package prediction.fast;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static pacman.game.Constants.GHOST;
+
+/**
+ * Opt-in telemetry for the belief trackers, so the cost and accuracy of settings such as the
+ * threshold and the lookahead depth can be measured rather than guessed.
+ * <p>
+ * Attach one with {@link GhostPredictionsFast#setMetrics(BeliefMetrics)} and it is told about every
+ * update, copy and re-sighting of a ghost. Dump it at the end of a game and {@link #reset()} it for the next.
+ * Recording is synchronized as updates may run on several threads at once.
+ */
+public class BeliefMetrics {
+    private static final GHOST[] GHOSTS = GHOST.values();
+
+    private long updates;
+    private long copies;
+    // Ghosts seen again after at least a tick out of sight
+    private long observations;
+    // Observations where the belief had ruled out where the ghost turned out to be
+    private long misses;
+
+    private final Histogram[] activeCells = new Histogram[GHOSTS.length];
+    // Not always one, a NEUTRAL arrival spreads 1 / (n - 1) to all n neighbours
+    private final Histogram mass = Histogram.linear(0, 2, 20);
+    private final Histogram truncatedMass = Histogram.exponential(1e-6, 2, 20);
+    private final Histogram entropy = Histogram.linear(0, 8, 32);
+    private final Histogram updateNanos = Histogram.exponential(100, 2, 24);
+    private final Histogram copyNanos = Histogram.exponential(100, 2, 24);
+    private final Histogram logLikelihood = Histogram.linear(-10, 0, 20);
+
+    public BeliefMetrics() {
+        for (int ghost = 0; ghost < activeCells.length; ghost++) {
+            activeCells[ghost] = Histogram.exponential(1, 2, 12);
+        }
+    }
+
+    /**
+     * @param ghost       Ordinal of the ghost that was updated
+     * @param active      Number of cells holding probability afterwards
+     * @param totalMass   Probability held afterwards
+     * @param truncated   Probability dropped because its cells were under the threshold
+     * @param entropyNats Entropy of the normalised belief afterwards
+     * @param nanos       Time taken by the update itself
+     */
+    public synchronized void recordUpdate(int ghost, int active, double totalMass, double truncated, double entropyNats, long nanos) {
+        updates++;
+        activeCells[ghost].add(active);
+        mass.add(totalMass);
+        truncatedMass.add(truncated);
+        entropy.add(entropyNats);
+        updateNanos.add(nanos);
+    }
+
+    public synchronized void recordCopy(long nanos) {
+        copies++;
+        copyNanos.add(nanos);
+    }
+
+    /**
+     * @param probability What the belief gave for the position a ghost was seen at after being out of sight
+     */
+    public synchronized void recordObservation(double probability) {
+        observations++;
+        if (probability > 0) {
+            logLikelihood.add(Math.log(probability));
+        } else {
+            misses++;
+        }
+    }
+
+    public synchronized long getUpdates() {
+        return updates;
+    }
+
+    public synchronized long getCopies() {
+        return copies;
+    }
+
+    public synchronized long getObservations() {
+        return observations;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getMeanLogLikelihood() {
+        return logLikelihood.getMean();
+    }
+
+    public synchronized double getMeanUpdateNanos() {
+        return updateNanos.getMean();
+    }
+
+    public synchronized void reset() {
+        updates = 0;
+        copies = 0;
+        observations = 0;
+        misses = 0;
+        for (Histogram histogram : activeCells) {
+            histogram.clear();
+        }
+        mass.clear();
+        truncatedMass.clear();
+        entropy.clear();
+        updateNanos.clear();
+        copyNanos.clear();
+        logLikelihood.clear();
+    }
+
+    public synchronized void dump(PrintStream out) {
+        out.println("Belief metrics: updates " + updates + " copies " + copies
+                + " observations " + observations + " misses " + misses);
+        for (GHOST ghost : GHOSTS) {
+            out.println("active cells " + ghost + " " + activeCells[ghost.ordinal()]);
+        }
+        out.println("mass " + mass);
+        out.println("truncated mass " + truncatedMass);
+        out.println("entropy " + entropy);
+        out.println("update ns " + updateNanos);
+        out.println("copy ns " + copyNanos);
+        out.println("log likelihood " + logLikelihood);
+    }
+
+    /**
+     * Fixed bucket histogram that also keeps the count, mean and range of what it is given.
+     * Values below the first bound land in the first bucket and above the last in the last
+     */
+    public static final class Histogram {
+        // Bucket i holds values below upperBounds[i], the last bucket holds the rest
+        private final double[] upperBounds;
+        private final long[] counts;
+        private long count;
+        private double sum;
+        private double min;
+        private double max;
+
+        private Histogram(double[] upperBounds) {
+            this.upperBounds = upperBounds;
+            this.counts = new long[upperBounds.length + 1];
+            clear();
+        }
+
+        /**
+         * Buckets of equal width between min and max
+         */
+        public static Histogram linear(double min, double max, int buckets) {
+            double[] bounds = new double[buckets];
+            for (int i = 0; i < buckets; i++) {
+                bounds[i] = min + (max - min) * (i + 1) / buckets;
+            }
+            return new Histogram(bounds);
+        }
+
+        /**
+         * Buckets growing by factor from first, for values spanning orders of magnitude
+         */
+        public static Histogram exponential(double first, double factor, int buckets) {
+            double[] bounds = new double[buckets];
+            double bound = first;
+            for (int i = 0; i < buckets; i++) {
+                bounds[i] = bound;
+                bound *= factor;
+            }
+            return new Histogram(bounds);
+        }
+
+        public void add(double value) {
+            int bucket = Arrays.binarySearch(upperBounds, value);
+            // An exact hit on a bound belongs to the bucket above it
+            bucket = (bucket >= 0) ? bucket + 1 : -(bucket + 1);
+            counts[bucket]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        public void clear() {
+            Arrays.fill(counts, 0);
+            count = 0;
+            sum = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return (count == 0) ? 0 : sum / count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public long[] getCounts() {
+            return counts.clone();
+        }
+
+        public double[] getUpperBounds() {
+            return upperBounds.clone();
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "{count: 0}";
+            }
+            StringBuilder builder = new StringBuilder();
+            builder.append("{count: ").append(count)
+                    .append(" mean: ").append(getMean())
+                    .append(" min: ").append(min)
+                    .append(" max: ").append(max)
+                    .append(" buckets:");
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    builder.append(' ').append(i < upperBounds.length ? "<" + upperBounds[i] : ">=" + upperBounds[upperBounds.length - 1])
+                            .append('=').append(counts[i]);
+                }
+            }
+            return builder.append('}').toString();
+        }
+    }
+}
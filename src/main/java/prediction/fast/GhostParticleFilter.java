@@ -0,0 +1,370 @@
+package prediction.fast;
+
+import pacman.game.internal.Maze;
+import prediction.GhostLocation;
+import prediction.LocationConsumer;
+
+import java.util.*;
+
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * Particle filter alternative to {@link GhostPredictionsFast} with the same observe, observeNotPresent,
+ * update and sampleLocations contract.
+ * <p>
+ * Each ghost is tracked by a fixed number of equally weighted particles in primitive arrays, so an update
+ * costs the same however spread out the belief is and no mass is lost to a pruning threshold. Negative
+ * observations remove the particles they rule out and systematically resample the survivors back up to
+ * full strength. Fewer particles trades accuracy for a lower cap on the per tick cost.
+ */
+public class GhostParticleFilter {
+    private static final GHOST[] GHOSTS = GHOST.values();
+    private static final MOVE[] MOVES = MOVE.values();
+    private static final int numGhosts = GHOSTS.length;
+    private static final byte NEUTRAL = (byte) MOVE.NEUTRAL.ordinal();
+
+    private final Maze maze;
+    private final MazeTransitions transitions;
+    private final int mazeSize;
+    private final int numParticles;
+    // Particles for ghost g are in [g * numParticles, g * numParticles + count[g])
+    private int[] nodes;
+    private byte[] moves;
+    private int[] count = new int[numGhosts];
+    private boolean[] beenSpotted = new boolean[numGhosts];
+    private Random random = new Random();
+
+    // Spare arrays for resampling
+    private int[] resampledNodes;
+    private byte[] resampledMoves;
+
+    // Lazily built occupancy per (ghost, node) and combined danger, with the nodes written so they can be cleared
+    private double[] occupancy;
+    private double[] dangerMap;
+    private double[] noGhost;
+    private int[] occupied;
+    private int numberOccupied;
+    private boolean occupancyDirty = true;
+
+    // Stamped with the listing number when a node has been added to a location list
+    private int[] listed;
+    private int listing;
+
+    public GhostParticleFilter(Maze maze, int numParticles) {
+        this.maze = maze;
+        this.transitions = MazeTransitions.forMaze(maze);
+        this.numParticles = numParticles;
+        // Cut out the end node - it always has no neighbours
+        mazeSize = maze.graph.length - 1;
+        nodes = new int[numParticles * numGhosts];
+        moves = new byte[numParticles * numGhosts];
+        resampledNodes = new int[numParticles];
+        resampledMoves = new byte[numParticles];
+        occupancy = new double[mazeSize * numGhosts];
+        dangerMap = new double[mazeSize];
+        noGhost = new double[mazeSize];
+        listed = new int[mazeSize];
+        occupied = new int[numParticles * numGhosts];
+    }
+
+    public void preallocate() {
+        // Spread the particles evenly over the maze
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            int startIndex = ghost * numParticles;
+            for (int particle = 0; particle < numParticles; particle++) {
+                nodes[startIndex + particle] = (int) (((long) particle * mazeSize) / numParticles);
+                moves[startIndex + particle] = NEUTRAL;
+            }
+            count[ghost] = numParticles;
+        }
+        occupancyDirty = true;
+    }
+
+    public void observe(GHOST ghost, int index, MOVE lastMoveMade) {
+        int ghostIndex = ghost.ordinal();
+        int startIndex = ghostIndex * numParticles;
+        Arrays.fill(nodes, startIndex, startIndex + numParticles, index);
+        Arrays.fill(moves, startIndex, startIndex + numParticles, (byte) lastMoveMade.ordinal());
+        count[ghostIndex] = numParticles;
+        beenSpotted[ghostIndex] = true;
+        occupancyDirty = true;
+    }
+
+    public void observeNotPresent(GHOST ghost, int index) {
+        int ghostIndex = ghost.ordinal();
+        int startIndex = ghostIndex * numParticles;
+        int survivors = 0;
+        for (int particle = startIndex; particle < startIndex + count[ghostIndex]; particle++) {
+            if (nodes[particle] != index) {
+                nodes[startIndex + survivors] = nodes[particle];
+                moves[startIndex + survivors] = moves[particle];
+                survivors++;
+            }
+        }
+        resample(ghostIndex, survivors);
+    }
+
+    /**
+     * Rules the ghost out of every node that can be seen, resampling once for the lot
+     *
+     * @param ghost        The ghost that wasn't seen
+     * @param visibleNodes The nodes that can currently be seen
+     * @return true if any particle was ruled out
+     * @see GhostPredictionsFast#getVisibleNodes
+     */
+    public boolean observeNotPresent(GHOST ghost, BitSet visibleNodes) {
+        int ghostIndex = ghost.ordinal();
+        int startIndex = ghostIndex * numParticles;
+        int survivors = 0;
+        for (int particle = startIndex; particle < startIndex + count[ghostIndex]; particle++) {
+            if (!visibleNodes.get(nodes[particle])) {
+                nodes[startIndex + survivors] = nodes[particle];
+                moves[startIndex + survivors] = moves[particle];
+                survivors++;
+            }
+        }
+        if (survivors == count[ghostIndex]) {
+            return false;
+        }
+        resample(ghostIndex, survivors);
+        return true;
+    }
+
+    // Systematic resampling of the first survivors particles back up to the full number
+    private void resample(int ghost, int survivors) {
+        occupancyDirty = true;
+        int startIndex = ghost * numParticles;
+        if (survivors == 0 || survivors == numParticles) {
+            count[ghost] = survivors;
+            return;
+        }
+        double step = survivors / (double) numParticles;
+        double position = random.nextDouble() * step;
+        for (int particle = 0; particle < numParticles; particle++) {
+            int source = startIndex + (int) position;
+            resampledNodes[particle] = nodes[source];
+            resampledMoves[particle] = moves[source];
+            position += step;
+        }
+        System.arraycopy(resampledNodes, 0, nodes, startIndex, numParticles);
+        System.arraycopy(resampledMoves, 0, moves, startIndex, numParticles);
+        count[ghost] = numParticles;
+    }
+
+    public void update() {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            updateGhost(ghost);
+        }
+    }
+
+    public void update(GHOST ghost) {
+        updateGhost(ghost.ordinal());
+    }
+
+    private void updateGhost(int ghost) {
+        occupancyDirty = true;
+        // As with the dense predictions a ghost that hasn't been seen yet is still in the lair
+        if (!beenSpotted[ghost]) {
+            count[ghost] = 0;
+            return;
+        }
+        int[] rowStart = transitions.getRowStart();
+        int[] successors = transitions.getSuccessors();
+        byte[] exitMoves = transitions.getExitMoves();
+        int startIndex = ghost * numParticles;
+        for (int particle = startIndex; particle < startIndex + count[ghost]; particle++) {
+            int row = MazeTransitions.row(nodes[particle], moves[particle]);
+            int options = rowStart[row + 1] - rowStart[row];
+            if (options > 0) {
+                int entry = rowStart[row] + ((options == 1) ? 0 : random.nextInt(options));
+                nodes[particle] = successors[entry];
+                moves[particle] = exitMoves[entry];
+            }
+        }
+    }
+
+    public double getProbability(GHOST ghost, int index) {
+        buildOccupancy();
+        return occupancy[ghost.ordinal() * mazeSize + index];
+    }
+
+    public final double calculate(int index) {
+        if (index >= mazeSize) return 0;
+        return getDangerMap()[index];
+    }
+
+    /**
+     * The chance of there being any ghost at each node, indexed by node.
+     * Worked out once after each change and shared, so it must not be modified
+     *
+     * @return The danger map
+     */
+    public double[] getDangerMap() {
+        buildOccupancy();
+        return dangerMap;
+    }
+
+    // Only the nodes that hold particles are written, and cleared again next time
+    private void buildOccupancy() {
+        if (!occupancyDirty) {
+            return;
+        }
+        for (int k = 0; k < numberOccupied; k++) {
+            int i = occupied[k];
+            occupancy[i] = 0;
+            dangerMap[i % mazeSize] = 0;
+        }
+        numberOccupied = 0;
+        double share = 1.0d / numParticles;
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            int startIndex = ghost * numParticles;
+            for (int particle = startIndex; particle < startIndex + count[ghost]; particle++) {
+                int i = ghost * mazeSize + nodes[particle];
+                if (occupancy[i] == 0) {
+                    occupied[numberOccupied++] = i;
+                }
+                occupancy[i] += share;
+            }
+        }
+        // Chance of no ghost is the product over the ghosts, then reverse it for the chance of any
+        for (int k = 0; k < numberOccupied; k++) {
+            noGhost[occupied[k] % mazeSize] = 1.0d;
+        }
+        for (int k = 0; k < numberOccupied; k++) {
+            int i = occupied[k];
+            noGhost[i % mazeSize] *= (1 - occupancy[i]);
+        }
+        for (int k = 0; k < numberOccupied; k++) {
+            int node = occupied[k] % mazeSize;
+            dangerMap[node] = 1 - noGhost[node];
+        }
+        occupancyDirty = false;
+    }
+
+    public EnumMap<GHOST, GhostLocation> sampleLocations() {
+        EnumMap<GHOST, GhostLocation> results = new EnumMap<GHOST, GhostLocation>(GHOST.class);
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            if (count[ghost] == 0) {
+                continue;
+            }
+            int particle = ghost * numParticles + random.nextInt(count[ghost]);
+            results.put(GHOSTS[ghost], new GhostLocation(
+                    nodes[particle],
+                    MOVES[sampleMove(particle)],
+                    getProbability(GHOSTS[ghost], nodes[particle])
+            ));
+        }
+        return results;
+    }
+
+    /**
+     * Draws n joint samples of the ghost locations without allocating
+     *
+     * @see GhostPredictionsFast#sampleLocations(int, int[], int[])
+     */
+    public void sampleLocations(int n, int[] indices, int[] lastMoves) {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            for (int sample = 0; sample < n; sample++) {
+                int slot = sample * numGhosts + ghost;
+                if (count[ghost] == 0) {
+                    indices[slot] = -1;
+                    lastMoves[slot] = -1;
+                } else {
+                    int particle = ghost * numParticles + random.nextInt(count[ghost]);
+                    indices[slot] = nodes[particle];
+                    lastMoves[slot] = sampleMove(particle);
+                }
+            }
+        }
+    }
+
+    // The particle's move, with a random arrival picked for NEUTRAL
+    private int sampleMove(int particle) {
+        if (moves[particle] != NEUTRAL) {
+            return moves[particle];
+        }
+        int row = MazeTransitions.row(nodes[particle], NEUTRAL);
+        int[] rowStart = transitions.getRowStart();
+        int entry = rowStart[row] + random.nextInt(rowStart[row + 1] - rowStart[row]);
+        return MOVES[transitions.getExitMoves()[entry]].opposite().ordinal();
+    }
+
+    public GhostParticleFilter copy() {
+        GhostParticleFilter other = new GhostParticleFilter(maze, numParticles);
+        copyInto(other);
+        return other;
+    }
+
+    public void copyInto(GhostParticleFilter other) {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            copyGhostInto(other, ghost);
+        }
+    }
+
+    public void copyInto(GhostParticleFilter other, GHOST ghost) {
+        copyGhostInto(other, ghost.ordinal());
+    }
+
+    private void copyGhostInto(GhostParticleFilter other, int ghost) {
+        int startIndex = ghost * numParticles;
+        System.arraycopy(nodes, startIndex, other.nodes, startIndex, count[ghost]);
+        System.arraycopy(moves, startIndex, other.moves, startIndex, count[ghost]);
+        other.count[ghost] = count[ghost];
+        other.beenSpotted[ghost] = beenSpotted[ghost];
+        other.occupancyDirty = true;
+    }
+
+    public void reset() {
+        Arrays.fill(count, 0);
+        Arrays.fill(beenSpotted, false);
+        occupancyDirty = true;
+    }
+
+    public List<GhostLocation> getGhostLocations(GHOST ghost) {
+        ArrayList<GhostLocation> locations = new ArrayList<>();
+        forEachLocation(ghost, (index, move, probability) -> locations.add(new GhostLocation(index, MOVES[move], probability)));
+        return locations;
+    }
+
+    public List<GhostLocation> getGhostLocations() {
+        ArrayList<GhostLocation> locations = new ArrayList<>();
+        LocationConsumer collector = (index, move, probability) -> locations.add(new GhostLocation(index, MOVES[move], probability));
+        for (GHOST ghost : GHOSTS) {
+            forEachLocation(ghost, collector);
+        }
+        return locations;
+    }
+
+    /**
+     * Visits every node the ghost may be in without allocating, once per occupied node carrying the
+     * move of the first particle found there
+     *
+     * @param ghost    The ghost to visit the belief of
+     * @param consumer Called with the node index, last move ordinal and probability of each cell
+     */
+    public void forEachLocation(GHOST ghost, LocationConsumer consumer) {
+        buildOccupancy();
+        int ghostIndex = ghost.ordinal();
+        int startIndex = ghostIndex * numParticles;
+        listing++;
+        for (int particle = startIndex; particle < startIndex + count[ghostIndex]; particle++) {
+            if (listed[nodes[particle]] != listing) {
+                listed[nodes[particle]] = listing;
+                consumer.accept(nodes[particle], moves[particle], occupancy[ghostIndex * mazeSize + nodes[particle]]);
+            }
+        }
+    }
+
+    public String getGhostInfo(GHOST ghost) {
+        List<GhostLocation> ghostLocations = getGhostLocations(ghost);
+        return "IndividualLocations{" +
+                "length: " + ghostLocations.size() +
+                "ghostLocations=" + ghostLocations +
+                '}';
+    }
+
+    public int getNumParticles() {
+        return numParticles;
+    }
+}
@@ -1,10 +1,14 @@
 package prediction.fast;
 
+import pacman.game.Game;
+import maze.CompiledMaze;
 import pacman.game.internal.Maze;
-import pacman.game.internal.Node;
 import prediction.GhostLocation;
+import prediction.LocationConsumer;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static pacman.game.Constants.GHOST;
 import static pacman.game.Constants.MOVE;
@@ -13,166 +17,725 @@ import static pacman.game.Constants.MOVE;
  * Created by Piers on 16/05/2016.
  */
 public class GhostPredictionsFast {
-    private static final int numGhosts = GHOST.values().length;
+    private static final GHOST[] GHOSTS = GHOST.values();
+    private static final MOVE[] MOVES = MOVE.values();
+    private static final byte NO_MOVE = -1;
+    private static final byte NEUTRAL = (byte) MOVE.NEUTRAL.ordinal();
+    private static final int numGhosts = GHOSTS.length;
     // First mazeSize indices are for ghost Ordinal 0 etc ...
-    private double[] probabilities;
-    private double[] backProbabilities;
-    private MOVE[] moves;
-    private MOVE[] backMoves;
-    private Maze maze;
+    private ProbabilityStore probabilities;
+    private ProbabilityStore backProbabilities;
+    // Move ordinals, NO_MOVE where there is no probability
+    private byte[] moves;
+    private byte[] backMoves;
+    private CompiledMaze maze;
+    private MazeTransitions transitions;
     private int mazeSize;
     private static final double THRESHOLD = 1 / 256.0d;
-    private EnumMap<GHOST, Boolean> beenSpotted;
+    // Plain array so each ghost's slice shares no mutable state with the others
+    private boolean[] beenSpotted = new boolean[numGhosts];
+    // Whether the ghost has been out of sight since it was last seen, only then is a sighting a test of the belief
+    private final boolean[] hidden = new boolean[numGhosts];
     private Random random;
 
+    // Sparse mode keeps, per ghost, the array indices that currently hold probability so that
+    // update, copy and clear only touch those. Ghost block g occupies [g * mazeSize, (g + 1) * mazeSize)
+    private final boolean sparse;
+    // Probabilities held as floats rather than doubles
+    private final boolean compact;
+    private int[] active;
+    private int[] activeCount;
+    private int[] backActive;
+
+    private final AliasTable[] aliasTables = new AliasTable[numGhosts];
+    private final boolean[] aliasDirty = new boolean[numGhosts];
+
+    // Stored probabilities for ghost g are to be multiplied by scale[g] when read.
+    // Negative observations only adjust the scale, it is folded back in on update
+    private final double[] scale = new double[numGhosts];
+
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 2048;
+    private boolean parallel = false;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    private double[] dangerMap;
+    private boolean dangerDirty = true;
+
+    private BeliefMetrics metrics;
+
+    // When set, exits are weighted by what ghosts have been seen to do rather than split evenly
+    private LearnedTransitions learned;
+    private int pacManIndex = -1;
+
     public GhostPredictionsFast(Maze maze) {
+        this(maze, false);
+    }
+
+    /**
+     * @param maze   The maze the ghosts are on
+     * @param sparse If true, only the cells with probability are visited on update, so the cost
+     *               scales with how spread out the belief is rather than with the maze size
+     */
+    public GhostPredictionsFast(Maze maze, boolean sparse) {
+        this(CompiledMaze.forMaze(maze), sparse);
+    }
+
+    /**
+     * @param maze   The maze the ghosts are on, which needn't be one the engine knows
+     * @param sparse As for {@link #GhostPredictionsFast(Maze, boolean)}
+     */
+    public GhostPredictionsFast(CompiledMaze maze, boolean sparse) {
+        this(maze, sparse, false);
+    }
+
+    /**
+     * @param maze    The maze the ghosts are on
+     * @param sparse  As for {@link #GhostPredictionsFast(Maze, boolean)}
+     * @param compact If true, probabilities are kept as floats, 8 bytes a cell less with both buffers.
+     *                Worth it where many are held at once, such as one per lookahead depth
+     */
+    public GhostPredictionsFast(CompiledMaze maze, boolean sparse, boolean compact) {
         this.maze = maze;
+        this.sparse = sparse;
+        this.compact = compact;
+        this.transitions = MazeTransitions.forMaze(maze);
         // Cut out the end node - it always has no neighbours
-        mazeSize = maze.graph.length - 1;
-        probabilities = new double[mazeSize * numGhosts];
-        backProbabilities = new double[mazeSize * numGhosts];
-        this.beenSpotted = new EnumMap<>(GHOST.class);
-        for (GHOST ghost : GHOST.values()) {
-            beenSpotted.put(ghost, false);
-        }
-        moves = new MOVE[mazeSize * numGhosts];
-        backMoves = new MOVE[mazeSize * numGhosts];
+        mazeSize = maze.getNumberOfNodes() - 1;
+        probabilities = ProbabilityStore.create(mazeSize * numGhosts, compact);
+        dangerMap = new double[mazeSize];
+        backProbabilities = ProbabilityStore.create(mazeSize * numGhosts, compact);
+        moves = new byte[mazeSize * numGhosts];
+        backMoves = new byte[mazeSize * numGhosts];
+        Arrays.fill(moves, NO_MOVE);
+        Arrays.fill(backMoves, NO_MOVE);
         random = new Random();
+        Arrays.fill(scale, 1.0d);
+        if (sparse) {
+            active = new int[mazeSize * numGhosts];
+            backActive = new int[mazeSize * numGhosts];
+            activeCount = new int[numGhosts];
+        }
+    }
+
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    public boolean isCompact() {
+        return compact;
     }
 
     public void preallocate() {
         // Always one index at the end that shouldn't be used
-        double probability = 1 / ((probabilities.length * 1.0d) / GHOST.values().length);
-        Arrays.fill(probabilities, probability);
-        Arrays.fill(moves, MOVE.NEUTRAL);
+        double probability = 1 / ((probabilities.length() * 1.0d) / numGhosts);
+        probabilities.fill(0, probabilities.length(), probability);
+        Arrays.fill(moves, NEUTRAL);
+        Arrays.fill(scale, 1.0d);
+        changedAll();
+        if (sparse) {
+            for (int i = 0; i < active.length; i++) {
+                active[i] = i;
+            }
+            Arrays.fill(activeCount, mazeSize);
+        }
     }
 
     public void observe(GHOST ghost, int index, MOVE lastMoveMade) {
         int startIndex = (ghost.ordinal() * mazeSize);
         int arrayIndex = startIndex + index;
-        Arrays.fill(probabilities, startIndex, startIndex + mazeSize, 0);
-        Arrays.fill(moves, startIndex, startIndex + mazeSize, null);
-        probabilities[arrayIndex] = 1.0d;
-        beenSpotted.put(ghost, true);
-        moves[arrayIndex] = lastMoveMade;
+        if (metrics != null && beenSpotted[ghost.ordinal()] && hidden[ghost.ordinal()]) {
+            metrics.recordObservation(probabilities.get(arrayIndex) * scale[ghost.ordinal()]);
+        }
+        hidden[ghost.ordinal()] = false;
+        if (sparse) {
+            int ghostIndex = ghost.ordinal();
+            for (int k = startIndex; k < startIndex + activeCount[ghostIndex]; k++) {
+                probabilities.set(active[k], 0);
+                moves[active[k]] = NO_MOVE;
+            }
+            active[startIndex] = arrayIndex;
+            activeCount[ghostIndex] = 1;
+        } else {
+            probabilities.fill(startIndex, startIndex + mazeSize, 0);
+            Arrays.fill(moves, startIndex, startIndex + mazeSize, NO_MOVE);
+        }
+        probabilities.set(arrayIndex, 1.0d);
+        scale[ghost.ordinal()] = 1.0d;
+        beenSpotted[ghost.ordinal()] = true;
+        changed(ghost.ordinal());
+        moves[arrayIndex] = (byte) lastMoveMade.ordinal();
     }
 
     public void observeNotPresent(GHOST ghost, int index) {
-        int startIndex = (ghost.ordinal() * mazeSize);
-        int arrayIndex = startIndex + index;
-        double probabilityAdjustment = (1 - probabilities[arrayIndex]);
-        probabilities[arrayIndex] = 0;
-        moves[arrayIndex] = null;
-        for (int i = startIndex; i < startIndex + mazeSize; i++) {
-            probabilities[i] /= probabilityAdjustment;
+        int ghostIndex = ghost.ordinal();
+        int arrayIndex = (ghostIndex * mazeSize) + index;
+        hidden[ghostIndex] = true;
+        double probabilityAdjustment = (1 - probabilities.get(arrayIndex) * scale[ghostIndex]);
+        probabilities.set(arrayIndex, 0);
+        moves[arrayIndex] = NO_MOVE;
+        changed(ghostIndex);
+        // Renormalising is deferred to the next update, until then reads go through the scale
+        scale[ghostIndex] /= probabilityAdjustment;
+    }
+
+    /**
+     * Rules the ghost out of every node that can be seen, renormalising once for the lot
+     *
+     * @param ghost        The ghost that wasn't seen
+     * @param visibleNodes The nodes that can currently be seen
+     * @return true if any probability was ruled out
+     */
+    public boolean observeNotPresent(GHOST ghost, BitSet visibleNodes) {
+        int ghostIndex = ghost.ordinal();
+        int startIndex = ghostIndex * mazeSize;
+        hidden[ghostIndex] = true;
+        double removed = 0.0d;
+        if (sparse) {
+            for (int k = startIndex; k < startIndex + activeCount[ghostIndex]; k++) {
+                int i = active[k];
+                if (probabilities.get(i) > 0 && visibleNodes.get(i - startIndex)) {
+                    removed += probabilities.get(i);
+                    probabilities.set(i, 0);
+                    moves[i] = NO_MOVE;
+                }
+            }
+        } else {
+            for (int node = visibleNodes.nextSetBit(0); node >= 0 && node < mazeSize; node = visibleNodes.nextSetBit(node + 1)) {
+                int i = startIndex + node;
+                if (probabilities.get(i) > 0) {
+                    removed += probabilities.get(i);
+                    probabilities.set(i, 0);
+                    moves[i] = NO_MOVE;
+                }
+            }
+        }
+        if (removed == 0) {
+            return false;
         }
+        changed(ghostIndex);
+        scale[ghostIndex] /= (1 - removed * scale[ghostIndex]);
+        return true;
+    }
+
+    /**
+     * Collects the nodes that can currently be seen, to be shared by all the ghosts for the tick
+     *
+     * @param game         The game as observed this tick
+     * @param visibleNodes Set to reuse, it is cleared first
+     * @return visibleNodes
+     */
+    public static BitSet getVisibleNodes(Game game, BitSet visibleNodes) {
+        visibleNodes.clear();
+        int numberOfNodes = game.getNumberOfNodes();
+        for (int i = 0; i < numberOfNodes; i++) {
+            if (game.isNodeObservable(i)) {
+                visibleNodes.set(i);
+            }
+        }
+        return visibleNodes;
     }
 
     public void update() {
+        if (parallel && getWorkload() >= parallelThreshold) {
+            // Each ghost's slice is independent, so they can all be moved on at once
+            ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    RecursiveAction[] updates = new RecursiveAction[numGhosts];
+                    for (int ghost = 0; ghost < numGhosts; ghost++) {
+                        final int ghostIndex = ghost;
+                        updates[ghost] = new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                updateGhost(ghostIndex);
+                            }
+                        };
+                    }
+                    invokeAll(updates);
+                }
+            });
+            return;
+        }
         for (int ghost = 0; ghost < numGhosts; ghost++) {
-            if (!beenSpotted.get(GHOST.values()[ghost])) {
-                continue;
-            }
-            for (int i = (mazeSize * ghost); i < (mazeSize * (ghost + 1)); i++) {
-                if (probabilities[i] > THRESHOLD) {
-                    Node currentNode = maze.graph[i % mazeSize];
-                    int numberNodes = currentNode.numNeighbouringNodes;
-                    double probability = probabilities[i] / (numberNodes - 1);
-//                    System.out.println(probability + " n: " + numberNodes + " orig: " + probabilities[i]);
-                    MOVE back = moves[i].opposite();
-                    for (MOVE move : MOVE.values()) {
-                        if (move == back) {
-                            continue;
+            updateGhost(ghost);
+        }
+    }
+
+    /**
+     * Lets update() spread the ghosts over the shared fork join pool once there are at least
+     * the threshold number of cells to visit. Smaller updates stay on the calling thread
+     *
+     * @param parallel Whether to update in parallel at all
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    // Number of cells the next update will visit
+    private int getWorkload() {
+        if (!sparse) {
+            return probabilities.length();
+        }
+        int workload = 0;
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            workload += activeCount[ghost];
+        }
+        return workload;
+    }
+
+    /**
+     * Moves a single ghost's belief on a step, leaving the others alone
+     *
+     * @param ghost The ghost to update
+     */
+    public void update(GHOST ghost) {
+        updateGhost(ghost.ordinal());
+    }
+
+    private void updateGhost(int ghost) {
+        changed(ghost);
+        if (metrics == null) {
+            propagate(ghost);
+            return;
+        }
+        double truncated = getTruncatedMass(ghost);
+        long start = System.nanoTime();
+        propagate(ghost);
+        long nanos = System.nanoTime() - start;
+        recordUpdate(ghost, truncated, nanos);
+    }
+
+    private void propagate(int ghost) {
+        if (sparse) {
+            updateSparse(ghost);
+        } else {
+            updateDense(ghost);
+        }
+    }
+
+    // Probability the next update will drop for being under the threshold
+    private double getTruncatedMass(int ghost) {
+        if (!beenSpotted[ghost]) {
+            return 0;
+        }
+        int startIndex = mazeSize * ghost;
+        int end = sparse ? startIndex + activeCount[ghost] : startIndex + mazeSize;
+        double truncated = 0;
+        for (int k = startIndex; k < end; k++) {
+            double probability = probabilities.get(sparse ? active[k] : k) * scale[ghost];
+            if (probability > 0 && probability <= THRESHOLD) {
+                truncated += probability;
+            }
+        }
+        return truncated;
+    }
+
+    private void recordUpdate(int ghost, double truncated, long nanos) {
+        int startIndex = mazeSize * ghost;
+        int end = sparse ? startIndex + activeCount[ghost] : startIndex + mazeSize;
+        int cells = 0;
+        double mass = 0;
+        double plogp = 0;
+        for (int k = startIndex; k < end; k++) {
+            double probability = probabilities.get(sparse ? active[k] : k);
+            if (probability > 0) {
+                cells++;
+                mass += probability;
+                plogp += probability * Math.log(probability);
+            }
+        }
+        // Entropy of the belief normalised to one, H = log(m) - sum(p log p) / m
+        double entropy = (mass > 0) ? Math.log(mass) - plogp / mass : 0;
+        metrics.recordUpdate(ghost, cells, mass, truncated, entropy, nanos);
+    }
+
+    /**
+     * Starts reporting updates, copies and observations to the metrics, null to stop.
+     * The likelihood of where a ghost is seen is only recorded when it has been out of sight since
+     * it was last seen, that is {@link #observeNotPresent} was called for it in between.
+     * Copies made with {@link #copy()} report to the same metrics
+     *
+     * @param metrics Where to report to
+     */
+    public void setMetrics(BeliefMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public BeliefMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Propagate with learned transition weights instead of the even split, null to go back to even.
+     * The weights depend on where Pac-Man is, see {@link #setPacManLocation(int)}
+     *
+     * @param learned Learned weights for this maze, built on the same {@link CompiledMaze}
+     * @throws IllegalArgumentException If they are weights for the entries of another maze's transitions
+     */
+    public void setLearnedTransitions(LearnedTransitions learned) {
+        // The weights are read by entry index, which only means anything for the transitions they were learned on
+        if (learned != null && learned.getTransitions() != transitions) {
+            throw new IllegalArgumentException("Learned transitions are for a different compiled maze");
+        }
+        this.learned = learned;
+    }
+
+    public LearnedTransitions getLearnedTransitions() {
+        return learned;
+    }
+
+    /**
+     * Where Pac-Man is taken to be while propagating with learned transitions
+     *
+     * @param pacManIndex The node index, -1 if unknown
+     */
+    public void setPacManLocation(int pacManIndex) {
+        this.pacManIndex = pacManIndex;
+    }
+
+    private void updateDense(int ghost) {
+        int startIndex = mazeSize * ghost;
+        if (beenSpotted[ghost]) {
+            int[] rowStart = transitions.getRowStart();
+            int[] successors = transitions.getSuccessors();
+            byte[] exitMoves = transitions.getExitMoves();
+            double[] weights = transitions.getWeights();
+            double ghostScale = scale[ghost];
+            for (int i = startIndex; i < startIndex + mazeSize; i++) {
+                if (probabilities.get(i) * ghostScale > THRESHOLD) {
+                    int row = MazeTransitions.row(i - startIndex, moves[i]);
+                    double mass = probabilities.get(i) * ghostScale;
+                    double probability = mass * weights[row];
+                    int bucket = (learned != null) ? learned.getBucket(i - startIndex, pacManIndex) : 0;
+                    for (int entry = rowStart[row]; entry < rowStart[row + 1]; entry++) {
+                        int index = startIndex + successors[entry];
+                        if (learned != null) {
+                            probability = mass * learned.getWeight(entry, bucket);
                         }
-                        if (currentNode.neighbourhood.containsKey(move)) {
-                            int index = currentNode.neighbourhood.get(move);
-                            // If we haven't already written to there or what we wrote was less probable
-                            if (backProbabilities[(mazeSize * ghost) + index] <= probabilities[(mazeSize * ghost) + index]) {
-                                backProbabilities[(mazeSize * ghost) + index] = probability;
-                                backMoves[(mazeSize * ghost) + index] = move;
+                        // If we haven't already written to there or what we wrote was less probable
+                        if (backProbabilities.get(index) <= probabilities.get(index) * ghostScale) {
+                            backProbabilities.set(index, probability);
+                            backMoves[index] = exitMoves[entry];
+                        }
+                    }
+                }
+            }
+        }
+
+        scale[ghost] = 1.0d;
+        backProbabilities.copyTo(startIndex, probabilities, mazeSize);
+        backProbabilities.fill(startIndex, startIndex + mazeSize, 0.0d);
+
+        System.arraycopy(backMoves, startIndex, moves, startIndex, mazeSize);
+        Arrays.fill(backMoves, startIndex, startIndex + mazeSize, NO_MOVE);
+    }
+
+    // Same propagation as the dense update, but driven by the active list. Cells are written
+    // to the back buffer and recorded in the back active list the first time they are reached
+    private void updateSparse(int ghost) {
+        int startIndex = mazeSize * ghost;
+        int count = 0;
+        if (beenSpotted[ghost]) {
+            int[] rowStart = transitions.getRowStart();
+            int[] successors = transitions.getSuccessors();
+            byte[] exitMoves = transitions.getExitMoves();
+            double[] weights = transitions.getWeights();
+            double ghostScale = scale[ghost];
+            for (int k = startIndex; k < startIndex + activeCount[ghost]; k++) {
+                int i = active[k];
+                if (probabilities.get(i) * ghostScale > THRESHOLD) {
+                    int row = MazeTransitions.row(i - startIndex, moves[i]);
+                    double mass = probabilities.get(i) * ghostScale;
+                    double probability = mass * weights[row];
+                    int bucket = (learned != null) ? learned.getBucket(i - startIndex, pacManIndex) : 0;
+                    for (int entry = rowStart[row]; entry < rowStart[row + 1]; entry++) {
+                        int index = startIndex + successors[entry];
+                        if (learned != null) {
+                            probability = mass * learned.getWeight(entry, bucket);
+                        }
+                        if (backProbabilities.get(index) <= probabilities.get(index) * ghostScale) {
+                            if (backMoves[index] == NO_MOVE) {
+                                backActive[startIndex + count++] = index;
                             }
+                            backProbabilities.set(index, probability);
+                            backMoves[index] = exitMoves[entry];
                         }
                     }
                 }
             }
         }
 
-        System.arraycopy(backProbabilities, 0, probabilities, 0, probabilities.length);
-        Arrays.fill(backProbabilities, 0.0d);
+        // Clear out the old frontier then move the new one across, the scale is folded in above
+        scale[ghost] = 1.0d;
+        for (int k = startIndex; k < startIndex + activeCount[ghost]; k++) {
+            probabilities.set(active[k], 0);
+            moves[active[k]] = NO_MOVE;
+        }
+        for (int k = startIndex; k < startIndex + count; k++) {
+            int index = backActive[k];
+            probabilities.set(index, backProbabilities.get(index));
+            moves[index] = backMoves[index];
+            backProbabilities.set(index, 0);
+            backMoves[index] = NO_MOVE;
+        }
+        // Keep the frontier in index order, the overwrite rule above depends on visiting order
+        Arrays.sort(backActive, startIndex, startIndex + count);
+        System.arraycopy(backActive, startIndex, active, startIndex, count);
+        activeCount[ghost] = count;
+    }
 
-        System.arraycopy(backMoves, 0, moves, 0, moves.length);
-        Arrays.fill(backMoves, null);
+    public double getProbability(GHOST ghost, int index) {
+        return probabilities.get(mazeSize * ghost.ordinal() + index) * scale[ghost.ordinal()];
     }
 
     public final double calculate(int index) {
         if(index >= mazeSize) return 0;
-        double sum = 1.0d;
-        // Calculate the likelihood of there being no ghosts at all
-        for (int ghost = 0; ghost < numGhosts; ghost++) {
-            sum *= (1 - probabilities[(mazeSize * ghost) + index]);
+        return getDangerMap()[index];
+    }
+
+    /**
+     * The chance of there being any ghost at each node, indexed by node.
+     * Worked out once after each change and shared, so it must not be modified
+     *
+     * @return The danger map
+     */
+    public double[] getDangerMap() {
+        if (dangerDirty) {
+            // Calculate the likelihood of there being no ghosts at all
+            Arrays.fill(dangerMap, 1.0d);
+            for (int ghost = 0; ghost < numGhosts; ghost++) {
+                int startIndex = mazeSize * ghost;
+                double ghostScale = scale[ghost];
+                if (sparse) {
+                    for (int k = startIndex; k < startIndex + activeCount[ghost]; k++) {
+                        int i = active[k];
+                        dangerMap[i - startIndex] *= (1 - probabilities.get(i) * ghostScale);
+                    }
+                } else {
+                    for (int index = 0; index < mazeSize; index++) {
+                        dangerMap[index] *= (1 - probabilities.get(startIndex + index) * ghostScale);
+                    }
+                }
+            }
+            // Then reverse the probability to work out the chance of a ghost
+            for (int index = 0; index < mazeSize; index++) {
+                dangerMap[index] = 1 - dangerMap[index];
+            }
+            dangerDirty = false;
         }
-        // Then reverse the probability to work out the chance of a ghost
-        return 1 - sum;
+        return dangerMap;
+    }
+
+    private void changed(int ghost) {
+        aliasDirty[ghost] = true;
+        dangerDirty = true;
+    }
+
+    private void changedAll() {
+        Arrays.fill(aliasDirty, true);
+        dangerDirty = true;
     }
 
     public EnumMap<GHOST, GhostLocation> sampleLocations() {
         EnumMap<GHOST, GhostLocation> results = new EnumMap<GHOST, GhostLocation>(GHOST.class);
 
         for (int ghost = 0; ghost < numGhosts; ghost++) {
-            double x = Math.random();
-            double sum = 0.0d;
-            for (int i = (mazeSize * ghost); i < (mazeSize * (ghost + 1)); i++) {
-                sum += probabilities[i];
-                if (sum >= x) {
-                    if (!moves[i].equals(MOVE.NEUTRAL)) {
-                        results.put(GHOST.values()[ghost], new GhostLocation(i % mazeSize, moves[i], probabilities[i]));
-                    } else {
-                        MOVE[] possibleMoves = maze.graph[i % mazeSize].neighbourhood.keySet().toArray(new MOVE[0]);
-                        results.put(
-                                GHOST.values()[ghost],
-                                new GhostLocation(
-                                        i % mazeSize,
-                                        possibleMoves[random.nextInt(possibleMoves.length)].opposite(),
-                                        probabilities[i]
-                                )
-                        );
-                    }
-                    break;
-                }
+            int i = getAliasTable(ghost).sample(random);
+            if (i != -1) {
+                results.put(GHOSTS[ghost], new GhostLocation(i % mazeSize, MOVES[sampleMove(i)], probabilities.get(i) * scale[ghost]));
             }
         }
         return results;
     }
 
+    /**
+     * Draws n joint samples of the ghost locations without allocating.
+     * Sample s for ghost g is written to [s * 4 + g] of each buffer, or -1 in both if that ghost
+     * has no belief
+     *
+     * @param n         Number of samples to take
+     * @param indices   Buffer of at least n * 4 for the node indices
+     * @param lastMoves Buffer of at least n * 4 for the last move ordinals
+     */
+    public void sampleLocations(int n, int[] indices, int[] lastMoves) {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            AliasTable table = getAliasTable(ghost);
+            for (int sample = 0; sample < n; sample++) {
+                int i = table.sample(random);
+                int slot = sample * numGhosts + ghost;
+                if (i == -1) {
+                    indices[slot] = -1;
+                    lastMoves[slot] = -1;
+                } else {
+                    indices[slot] = i % mazeSize;
+                    lastMoves[slot] = sampleMove(i);
+                }
+            }
+        }
+    }
+
+    // The move stored at the array index, with a random arrival picked for NEUTRAL
+    private int sampleMove(int i) {
+        if (moves[i] != NEUTRAL) {
+            return moves[i];
+        }
+        int row = MazeTransitions.row(i % mazeSize, NEUTRAL);
+        int[] rowStart = transitions.getRowStart();
+        int entry = rowStart[row] + random.nextInt(rowStart[row + 1] - rowStart[row]);
+        return MOVES[transitions.getExitMoves()[entry]].opposite().ordinal();
+    }
+
+    // Rebuilt lazily the first time the ghost is sampled after its belief changed
+    private AliasTable getAliasTable(int ghost) {
+        if (aliasTables[ghost] == null) {
+            aliasTables[ghost] = new AliasTable(sparse ? Math.max(activeCount[ghost], 16) : mazeSize);
+            aliasDirty[ghost] = true;
+        }
+        if (aliasDirty[ghost]) {
+            int startIndex = mazeSize * ghost;
+            if (sparse) {
+                probabilities.buildAlias(aliasTables[ghost], active, startIndex, startIndex + activeCount[ghost]);
+            } else {
+                probabilities.buildAlias(aliasTables[ghost], startIndex, startIndex + mazeSize);
+            }
+            aliasDirty[ghost] = false;
+        }
+        return aliasTables[ghost];
+    }
+
     public GhostPredictionsFast copy() {
-        GhostPredictionsFast other = new GhostPredictionsFast(this.maze);
-        System.arraycopy(this.probabilities, 0, other.probabilities, 0, probabilities.length);
-        System.arraycopy(this.backProbabilities, 0, other.backProbabilities, 0, backProbabilities.length);
-        System.arraycopy(this.moves, 0, other.moves, 0, moves.length);
-        System.arraycopy(this.backMoves, 0, other.backMoves, 0, backMoves.length);
+        GhostPredictionsFast other = new GhostPredictionsFast(this.maze, sparse, compact);
+        other.parallel = parallel;
+        other.parallelThreshold = parallelThreshold;
+        other.metrics = metrics;
+        other.learned = learned;
+        other.pacManIndex = pacManIndex;
+        copyInto(other);
         return other;
     }
 
-    public List<GhostLocation> getGhostLocations(GHOST ghost) {
-        ArrayList<GhostLocation> locations = new ArrayList<>();
-        for (int i = ghost.ordinal() * mazeSize; i < (ghost.ordinal() + 1) * mazeSize; i++) {
-            if (probabilities[i] > 0) {
-                locations.add(new GhostLocation(i % mazeSize, moves[i], probabilities[i]));
+    /**
+     * Overwrites another prediction on the same maze and with the same modes with this one,
+     * without allocating
+     *
+     * @param other The prediction to overwrite
+     */
+    public void copyInto(GhostPredictionsFast other) {
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            copyGhostInto(other, ghost);
+        }
+        if (metrics != null) {
+            metrics.recordCopy(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * As {@link #copyInto(GhostPredictionsFast)} but only for a single ghost's belief
+     *
+     * @param other The prediction to overwrite
+     * @param ghost The ghost to copy across
+     */
+    public void copyInto(GhostPredictionsFast other, GHOST ghost) {
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        copyGhostInto(other, ghost.ordinal());
+        if (metrics != null) {
+            metrics.recordCopy(System.nanoTime() - start);
+        }
+    }
+
+    private void copyGhostInto(GhostPredictionsFast other, int ghost) {
+        other.beenSpotted[ghost] = beenSpotted[ghost];
+        other.hidden[ghost] = hidden[ghost];
+        other.scale[ghost] = scale[ghost];
+        other.changed(ghost);
+        int startIndex = mazeSize * ghost;
+        if (sparse) {
+            // The back buffers are always clear between updates, so only the frontiers need moving
+            for (int k = startIndex; k < startIndex + other.activeCount[ghost]; k++) {
+                other.probabilities.set(other.active[k], 0);
+                other.moves[other.active[k]] = NO_MOVE;
             }
+            for (int k = startIndex; k < startIndex + activeCount[ghost]; k++) {
+                other.probabilities.set(active[k], probabilities.get(active[k]));
+                other.moves[active[k]] = moves[active[k]];
+            }
+            System.arraycopy(this.active, startIndex, other.active, startIndex, activeCount[ghost]);
+            other.activeCount[ghost] = activeCount[ghost];
+        } else {
+            probabilities.copyTo(startIndex, other.probabilities, mazeSize);
+            System.arraycopy(this.moves, startIndex, other.moves, startIndex, mazeSize);
         }
+    }
+
+    /**
+     * Forgets everything, as if newly constructed
+     */
+    public void reset() {
+        if (sparse) {
+            for (int ghost = 0; ghost < numGhosts; ghost++) {
+                int startIndex = mazeSize * ghost;
+                for (int k = startIndex; k < startIndex + activeCount[ghost]; k++) {
+                    probabilities.set(active[k], 0);
+                    moves[active[k]] = NO_MOVE;
+                }
+            }
+            Arrays.fill(activeCount, 0);
+        } else {
+            probabilities.fill(0, probabilities.length(), 0.0d);
+            Arrays.fill(moves, NO_MOVE);
+        }
+        Arrays.fill(beenSpotted, false);
+        Arrays.fill(hidden, false);
+        Arrays.fill(scale, 1.0d);
+        changedAll();
+    }
+
+    public List<GhostLocation> getGhostLocations(GHOST ghost) {
+        ArrayList<GhostLocation> locations = new ArrayList<>();
+        forEachLocation(ghost, (index, move, probability) -> locations.add(new GhostLocation(index, MOVES[move], probability)));
         return locations;
     }
 
     public List<GhostLocation> getGhostLocations() {
         ArrayList<GhostLocation> locations = new ArrayList<>();
-        for (int i = 0; i < probabilities.length; i++) {
-            if (probabilities[i] > 0) {
-                locations.add(new GhostLocation(i % mazeSize, moves[i], probabilities[i]));
-            }
+        LocationConsumer collector = (index, move, probability) -> locations.add(new GhostLocation(index, MOVES[move], probability));
+        for (GHOST ghost : GHOSTS) {
+            forEachLocation(ghost, collector);
         }
         return locations;
     }
 
+    /**
+     * Visits every cell the ghost may be in without allocating
+     *
+     * @param ghost    The ghost to visit the belief of
+     * @param consumer Called with the node index, last move ordinal and probability of each cell
+     */
+    public void forEachLocation(GHOST ghost, LocationConsumer consumer) {
+        int ghostIndex = ghost.ordinal();
+        int startIndex = mazeSize * ghostIndex;
+        double ghostScale = scale[ghostIndex];
+        if (sparse) {
+            for (int k = startIndex; k < startIndex + activeCount[ghostIndex]; k++) {
+                int i = active[k];
+                if (probabilities.get(i) > 0) {
+                    consumer.accept(i - startIndex, moves[i], probabilities.get(i) * ghostScale);
+                }
+            }
+        } else {
+            for (int i = startIndex; i < startIndex + mazeSize; i++) {
+                if (probabilities.get(i) > 0) {
+                    consumer.accept(i - startIndex, moves[i], probabilities.get(i) * ghostScale);
+                }
+            }
+        }
+    }
+
     public String getGhostInfo(GHOST ghost) {
         List<GhostLocation> ghostLocations = getGhostLocations(ghost);
         return "IndividualLocations{" +
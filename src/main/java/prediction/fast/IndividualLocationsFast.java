@@ -2,19 +2,23 @@ package prediction.fast;
 
 import pacman.game.Constants;
 import pacman.game.internal.Maze;
-import pacman.game.internal.Node;
 import prediction.GhostLocation;
+import prediction.LocationConsumer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Created by pwillic on 13/05/2016.
  */
 public class IndividualLocationsFast {
 
+    private static final Constants.MOVE[] MOVES = Constants.MOVE.values();
+
     private Maze maze;
+    private MazeTransitions transitions;
 
     private double[] probabilities;
     private double[] backProbabilities;
@@ -22,12 +26,23 @@ public class IndividualLocationsFast {
     private int[] moves;
     private int[] backMoves;
 
+    // Sampling table, rebuilt on the first sample after the belief changes
+    private AliasTable aliasTable;
+    private boolean aliasDirty = true;
+    private Random random = new Random();
+
+    // Stored probabilities are to be multiplied by this when read, negative observations
+    // only adjust it and it is folded back in on update
+    private double scale = 1.0d;
+
     public IndividualLocationsFast(Maze maze) {
         this.maze = maze;
+        this.transitions = MazeTransitions.forMaze(maze);
         probabilities = new double[maze.graph.length];
         backProbabilities = new double[maze.graph.length];
         moves = new int[maze.graph.length];
         backMoves = new int[maze.graph.length];
+        aliasTable = new AliasTable(maze.graph.length);
     }
 
     public void observe(int index, Constants.MOVE lastMoveMade) {
@@ -37,39 +52,41 @@ public class IndividualLocationsFast {
         }
         probabilities[index] = 1.0d;
         moves[index] = lastMoveMade.ordinal();
+        scale = 1.0d;
+        aliasDirty = true;
     }
 
     public void observeNotPresent(int index) {
-        double probabilityAdjustment = (1 - probabilities[index]);
+        double probabilityAdjustment = (1 - probabilities[index] * scale);
         probabilities[index] = 0;
         moves[index] = -1;
-
-        for (int i = 0; i < probabilities.length; i++) {
-            probabilities[i] /= probabilityAdjustment;
-        }
+        aliasDirty = true;
+        // Renormalising is deferred to the next update, until then reads go through the scale
+        scale /= probabilityAdjustment;
     }
 
     public void update() {
+        aliasDirty = true;
+        int[] rowStart = transitions.getRowStart();
+        int[] successors = transitions.getSuccessors();
+        byte[] exitMoves = transitions.getExitMoves();
+        double[] weights = transitions.getWeights();
         for (int i = 0; i < probabilities.length; i++) {
             if (probabilities[i] > 0) {
-                Node currentNode = maze.graph[i];
-                int numberNodes = currentNode.numNeighbouringNodes;
-                double probability = probabilities[i] / (numberNodes - 1);
-                Constants.MOVE back = Constants.MOVE.values()[moves[i]].opposite();
-                for (Constants.MOVE move : Constants.MOVE.values()) {
-                    if (move == back) continue;
-                    if (currentNode.neighbourhood.containsKey(move)) {
-                        int index = currentNode.neighbourhood.get(move);
-                        // If we haven't already written to there or what we wrote was less probable
-                        if (backProbabilities[index] <= probabilities[i]) {
-                            backProbabilities[index] = probability;
-                            backMoves[index] = move.ordinal();
-                        }
+                int row = MazeTransitions.row(i, moves[i]);
+                double probability = probabilities[i] * scale * weights[row];
+                for (int entry = rowStart[row]; entry < rowStart[row + 1]; entry++) {
+                    int index = successors[entry];
+                    // If we haven't already written to there or what we wrote was less probable
+                    if (backProbabilities[index] <= probabilities[i] * scale) {
+                        backProbabilities[index] = probability;
+                        backMoves[index] = exitMoves[entry];
                     }
                 }
             }
         }
 
+        scale = 1.0d;
         System.arraycopy(backProbabilities, 0, probabilities, 0, probabilities.length);
         Arrays.fill(backProbabilities, 0.0d);
 
@@ -84,6 +101,7 @@ public class IndividualLocationsFast {
         System.arraycopy(this.backProbabilities, 0, other.backProbabilities, 0, backProbabilities.length);
         System.arraycopy(this.moves, 0, other.moves, 0, moves.length);
         System.arraycopy(this.backMoves, 0, other.backMoves, 0, backMoves.length);
+        other.scale = scale;
         return other;
     }
 
@@ -97,27 +115,54 @@ public class IndividualLocationsFast {
     }
 
     public GhostLocation sample() {
-        double x = Math.random();
-        double sum = 0.0d;
-        for (int i = 0; i < probabilities.length; i++) {
-            sum += probabilities[i];
-            if (sum >= x) return new GhostLocation(i, Constants.MOVE.values()[moves[i]], probabilities[i]);
+        int i = sampleIndex();
+        return (i == -1) ? null : new GhostLocation(i, MOVES[moves[i]], probabilities[i] * scale);
+    }
+
+    /**
+     * Draws n samples without allocating
+     *
+     * @param n         Number of samples to take
+     * @param indices   Buffer of at least n for the node indices, -1 if there is no belief
+     * @param lastMoves Buffer of at least n for the last move ordinals, -1 if there is no belief
+     */
+    public void sample(int n, int[] indices, int[] lastMoves) {
+        for (int sample = 0; sample < n; sample++) {
+            int i = sampleIndex();
+            indices[sample] = i;
+            lastMoves[sample] = (i == -1) ? -1 : moves[i];
+        }
+    }
+
+    private int sampleIndex() {
+        if (aliasDirty) {
+            aliasTable.build(probabilities, 0, probabilities.length);
+            aliasDirty = false;
         }
-        return null;
+        return aliasTable.sample(random);
     }
 
     public double getProbability(int index) {
-        return probabilities[index];
+        return probabilities[index] * scale;
     }
 
     public List<GhostLocation> getGhostLocations() {
         ArrayList<GhostLocation> locations = new ArrayList<>();
+        forEachLocation((index, move, probability) -> locations.add(new GhostLocation(index, MOVES[move], probability)));
+        return locations;
+    }
+
+    /**
+     * Visits every cell the ghost may be in without allocating
+     *
+     * @param consumer Called with the node index, last move ordinal and probability of each cell
+     */
+    public void forEachLocation(LocationConsumer consumer) {
         for (int i = 0; i < probabilities.length; i++) {
             if (probabilities[i] > 0) {
-                locations.add(new GhostLocation(i, Constants.MOVE.values()[moves[i]], probabilities[i]));
+                consumer.accept(i, moves[i], probabilities[i] * scale);
             }
         }
-        return locations;
     }
 
 
@@ -0,0 +1,178 @@
+package prediction.fast;
+
+import maze.CompiledMaze;
+import pacman.game.internal.Maze;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static pacman.game.Constants.MOVE;
+
+/**
+ * Ghost transition probabilities learned from the moves ghosts were actually seen to make.
+ * <p>
+ * Counts are kept against the entries of the {@link MazeTransitions} rows, so per (node, arrival move)
+ * and exit, and split by which way Pac-Man lay from the ghost at the time. That direction is bucketed
+ * by the dominant axis into the MOVE ordinals, NEUTRAL when Pac-Man is unknown or on the same spot.
+ * Weights are the additively smoothed counts, so a row with nothing recorded is uniform over its exits
+ * and sums to one, unlike the 1 / (n - 1) split of the plain update.
+ * <p>
+ * One instance per maze is shared through {@link #forMaze(Maze)}, so what is learned carries on
+ * from game to game. Recording is synchronized, reading isn't.
+ */
+public final class LearnedTransitions {
+    public static final int NUM_BUCKETS = MazeTransitions.NUM_MOVES;
+    public static final double DEFAULT_SMOOTHING = 1.0d;
+    private static final int NEUTRAL = MOVE.NEUTRAL.ordinal();
+
+    private static final Map<Maze, LearnedTransitions> cache = new WeakHashMap<>();
+
+    private final MazeTransitions transitions;
+    private final int[] xs;
+    private final int[] ys;
+    private final double smoothing;
+    // Indexed by entry * NUM_BUCKETS + bucket
+    private final int[] counts;
+    private final float[] weights;
+    // Indexed by row * NUM_BUCKETS + bucket
+    private final int[] rowTotals;
+    private long recorded;
+
+    public LearnedTransitions(Maze maze) {
+        this(maze, DEFAULT_SMOOTHING);
+    }
+
+    /**
+     * @param maze      The maze the ghosts are on
+     * @param smoothing Pseudo count added to every exit, larger stays closer to uniform for longer
+     */
+    public LearnedTransitions(Maze maze, double smoothing) {
+        this(CompiledMaze.forMaze(maze), smoothing);
+    }
+
+    public LearnedTransitions(CompiledMaze maze, double smoothing) {
+        this.transitions = MazeTransitions.forMaze(maze);
+        this.smoothing = smoothing;
+        int numberOfNodes = transitions.getNumberOfNodes();
+        xs = new int[numberOfNodes];
+        ys = new int[numberOfNodes];
+        for (int node = 0; node < numberOfNodes; node++) {
+            xs[node] = maze.getX(node);
+            ys[node] = maze.getY(node);
+        }
+        int entries = transitions.getSuccessors().length;
+        counts = new int[entries * NUM_BUCKETS];
+        weights = new float[entries * NUM_BUCKETS];
+        rowTotals = new int[(transitions.getRowStart().length - 1) * NUM_BUCKETS];
+
+        int[] rowStart = transitions.getRowStart();
+        for (int row = 0; row < rowStart.length - 1; row++) {
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                reweigh(row, bucket);
+            }
+        }
+    }
+
+    public static LearnedTransitions forMaze(Maze maze) {
+        synchronized (cache) {
+            LearnedTransitions learned = cache.get(maze);
+            if (learned == null) {
+                learned = new LearnedTransitions(maze);
+                cache.put(maze, learned);
+            }
+            return learned;
+        }
+    }
+
+    /**
+     * Which way Pac-Man lies from a node, as a MOVE ordinal
+     *
+     * @param node        Where the ghost is
+     * @param pacManIndex Where Pac-Man is, -1 if unknown
+     * @return The bucket to read weights from
+     */
+    public int getBucket(int node, int pacManIndex) {
+        if (pacManIndex < 0) {
+            return NEUTRAL;
+        }
+        int dx = xs[pacManIndex] - xs[node];
+        int dy = ys[pacManIndex] - ys[node];
+        if (dx == 0 && dy == 0) {
+            return NEUTRAL;
+        }
+        if (Math.abs(dx) >= Math.abs(dy)) {
+            return (dx > 0) ? MOVE.RIGHT.ordinal() : MOVE.LEFT.ordinal();
+        }
+        // y grows down the screen
+        return (dy > 0) ? MOVE.DOWN.ordinal() : MOVE.UP.ordinal();
+    }
+
+    /**
+     * The chance of taking a transition entry
+     *
+     * @param entry  Index into the {@link MazeTransitions} successors
+     * @param bucket From {@link #getBucket(int, int)}
+     */
+    public float getWeight(int entry, int bucket) {
+        return weights[entry * NUM_BUCKETS + bucket];
+    }
+
+    /**
+     * Record a ghost seen to step from one node to a neighbour
+     *
+     * @param node        Where it was
+     * @param arrivalMove The last move it had made to get there
+     * @param exitMove    The move it made next
+     * @param pacManIndex Where Pac-Man was at the time, -1 if unknown
+     * @return false if that move isn't possible without reversing, nothing is recorded
+     */
+    public synchronized boolean record(int node, MOVE arrivalMove, MOVE exitMove, int pacManIndex) {
+        int row = MazeTransitions.row(node, arrivalMove.ordinal());
+        int[] rowStart = transitions.getRowStart();
+        byte[] exitMoves = transitions.getExitMoves();
+        for (int entry = rowStart[row]; entry < rowStart[row + 1]; entry++) {
+            if (exitMoves[entry] == exitMove.ordinal()) {
+                int bucket = getBucket(node, pacManIndex);
+                counts[entry * NUM_BUCKETS + bucket]++;
+                rowTotals[row * NUM_BUCKETS + bucket]++;
+                recorded++;
+                reweigh(row, bucket);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(rowTotals, 0);
+        recorded = 0;
+        int[] rowStart = transitions.getRowStart();
+        for (int row = 0; row < rowStart.length - 1; row++) {
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                reweigh(row, bucket);
+            }
+        }
+    }
+
+    public MazeTransitions getTransitions() {
+        return transitions;
+    }
+
+    private void reweigh(int row, int bucket) {
+        int[] rowStart = transitions.getRowStart();
+        int exits = rowStart[row + 1] - rowStart[row];
+        double total = rowTotals[row * NUM_BUCKETS + bucket] + smoothing * exits;
+        for (int entry = rowStart[row]; entry < rowStart[row + 1]; entry++) {
+            // Without smoothing an unseen row falls back to uniform
+            weights[entry * NUM_BUCKETS + bucket] = (total > 0)
+                    ? (float) ((counts[entry * NUM_BUCKETS + bucket] + smoothing) / total)
+                    : 1.0f / exits;
+        }
+    }
+}
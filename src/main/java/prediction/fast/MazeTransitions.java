@@ -0,0 +1,110 @@
+package prediction.fast;
+
+import maze.CompiledMaze;
+import pacman.game.internal.Maze;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static pacman.game.Constants.MOVE;
+
+/**
+ * Ghost transition structure for a maze in compressed sparse row form.
+ * <p>
+ * Each row is keyed by (node, arrival move), row = node * NUM_MOVES + move.ordinal(), and lists the
+ * nodes a ghost can move to without reversing, in MOVE order, together with the move that gets it there.
+ * The weight of a row is the 1 / (n - 1) share each successor receives, n being the number of neighbours.
+ * <p>
+ * Compiled once per maze and shared by every predictor on it. Built from a {@link CompiledMaze}, so
+ * mazes the engine doesn't know about can be predicted on too.
+ */
+public final class MazeTransitions {
+    public static final int NUM_MOVES = MOVE.values().length;
+
+    private static final Map<CompiledMaze, MazeTransitions> cache = new WeakHashMap<>();
+
+    private final int numberOfNodes;
+    // Successors of row r are in [rowStart[r], rowStart[r + 1])
+    private final int[] rowStart;
+    private final int[] successors;
+    private final byte[] exitMoves;
+    private final double[] weights;
+
+    private MazeTransitions(CompiledMaze maze) {
+        MOVE[] moves = MOVE.values();
+        numberOfNodes = maze.getNumberOfNodes();
+        rowStart = new int[numberOfNodes * NUM_MOVES + 1];
+        weights = new double[numberOfNodes * NUM_MOVES];
+
+        int entries = 0;
+        for (int node = 0; node < numberOfNodes; node++) {
+            for (MOVE arrival : moves) {
+                entries += maze.getNumberOfNeighbours(node) - (maze.isPossible(node, arrival.opposite()) ? 1 : 0);
+            }
+        }
+        successors = new int[entries];
+        exitMoves = new byte[entries];
+
+        int entry = 0;
+        for (int node = 0; node < numberOfNodes; node++) {
+            int numberOfNeighbours = maze.getNumberOfNeighbours(node);
+            for (MOVE arrival : moves) {
+                int row = node * NUM_MOVES + arrival.ordinal();
+                rowStart[row] = entry;
+                weights[row] = 1.0d / (numberOfNeighbours - 1);
+                MOVE back = arrival.opposite();
+                for (MOVE move : moves) {
+                    if (move == back) {
+                        continue;
+                    }
+                    int neighbour = maze.getNeighbour(node, move);
+                    if (neighbour != -1) {
+                        successors[entry] = neighbour;
+                        exitMoves[entry] = (byte) move.ordinal();
+                        entry++;
+                    }
+                }
+            }
+        }
+        rowStart[rowStart.length - 1] = entry;
+    }
+
+    public static MazeTransitions forMaze(Maze maze) {
+        return forMaze(CompiledMaze.forMaze(maze));
+    }
+
+    public static MazeTransitions forMaze(CompiledMaze maze) {
+        synchronized (cache) {
+            MazeTransitions transitions = cache.get(maze);
+            if (transitions == null) {
+                transitions = new MazeTransitions(maze);
+                cache.put(maze, transitions);
+            }
+            return transitions;
+        }
+    }
+
+    public static int row(int node, int arrivalMove) {
+        return node * NUM_MOVES + arrivalMove;
+    }
+
+    public int getNumberOfNodes() {
+        return numberOfNodes;
+    }
+
+    public int[] getRowStart() {
+        return rowStart;
+    }
+
+    public int[] getSuccessors() {
+        return successors;
+    }
+
+    public byte[] getExitMoves() {
+        return exitMoves;
+    }
+
+    public double[] getWeights() {
+        return weights;
+    }
+}
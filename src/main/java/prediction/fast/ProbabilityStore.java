@@ -0,0 +1,118 @@
+package prediction.fast;
+
+import java.util.Arrays;
+
+/**
+ * Where a belief keeps its probabilities, as doubles or, to halve the memory, as floats.
+ * Values are read and written as doubles either way, floats are only rounded on the way in.
+ * Copies are only between stores of the same kind.
+ */
+abstract class ProbabilityStore {
+
+    static ProbabilityStore create(int size, boolean compact) {
+        return compact ? new Floats(size) : new Doubles(size);
+    }
+
+    abstract int length();
+
+    abstract double get(int i);
+
+    abstract void set(int i, double value);
+
+    abstract void fill(int from, int to, double value);
+
+    /**
+     * Copy [from, from + length) into the same cells of another store of the same kind
+     */
+    abstract void copyTo(int from, ProbabilityStore other, int length);
+
+    abstract void buildAlias(AliasTable table, int from, int to);
+
+    abstract void buildAlias(AliasTable table, int[] indices, int from, int to);
+
+    private static final class Doubles extends ProbabilityStore {
+        private final double[] values;
+
+        private Doubles(int size) {
+            values = new double[size];
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        double get(int i) {
+            return values[i];
+        }
+
+        @Override
+        void set(int i, double value) {
+            values[i] = value;
+        }
+
+        @Override
+        void fill(int from, int to, double value) {
+            Arrays.fill(values, from, to, value);
+        }
+
+        @Override
+        void copyTo(int from, ProbabilityStore other, int length) {
+            System.arraycopy(values, from, ((Doubles) other).values, from, length);
+        }
+
+        @Override
+        void buildAlias(AliasTable table, int from, int to) {
+            table.build(values, from, to);
+        }
+
+        @Override
+        void buildAlias(AliasTable table, int[] indices, int from, int to) {
+            table.build(values, indices, from, to);
+        }
+    }
+
+    private static final class Floats extends ProbabilityStore {
+        private final float[] values;
+
+        private Floats(int size) {
+            values = new float[size];
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        double get(int i) {
+            return values[i];
+        }
+
+        @Override
+        void set(int i, double value) {
+            values[i] = (float) value;
+        }
+
+        @Override
+        void fill(int from, int to, double value) {
+            Arrays.fill(values, from, to, (float) value);
+        }
+
+        @Override
+        void copyTo(int from, ProbabilityStore other, int length) {
+            System.arraycopy(values, from, ((Floats) other).values, from, length);
+        }
+
+        @Override
+        void buildAlias(AliasTable table, int from, int to) {
+            table.build(values, from, to);
+        }
+
+        @Override
+        void buildAlias(AliasTable table, int[] indices, int from, int to) {
+            table.build(values, indices, from, to);
+        }
+    }
+}